@@ -4,6 +4,8 @@
 
 package com.samskivert.mustache;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -15,6 +17,9 @@ import java.util.NoSuchElementException;
  */
 public abstract class BasicCollector implements Mustache.Collector
 {
+    /** Iterables are iterated via their own iterator. Note that sections take advantage of this to
+      * iterate over random access lists by index, and to check whether collections are empty
+      * without creating an iterator; subclasses should not change how lists are iterated. */
     public Iterator<?> toIterator (final Object value) {
         if (value instanceof Iterable<?>) {
             return ((Iterable<?>)value).iterator();
@@ -90,12 +95,29 @@ public abstract class BasicCollector implements Mustache.Collector
         }
     };
 
-    protected static final Mustache.VariableFetcher LIST_FETCHER = new Mustache.VariableFetcher() {
+    /**
+     * A fetcher for numeric names, which can also be called with an index that was parsed ahead
+     * of time (as is done for the components of compound names like {@code foo.0.bar}).
+     */
+    protected static abstract class IndexFetcher implements Mustache.VariableFetcher {
+        protected IndexFetcher () {}
+
         public Object get (Object ctx, String name) throws Exception {
             try {
-                return ((List<?>)ctx).get(Integer.parseInt(name));
+                return fetch(ctx, Integer.parseInt(name));
             } catch (NumberFormatException nfe) {
                 return Template.NO_FETCHER_FOUND;
+            }
+        }
+        /** Returns the element at {@code index} in {@code ctx}, or {@link
+          * Template#NO_FETCHER_FOUND} if there is no such element. */
+        public abstract Object fetch (Object ctx, int index);
+    }
+
+    protected static final Mustache.VariableFetcher LIST_FETCHER = new IndexFetcher() {
+        public Object fetch (Object ctx, int index) {
+            try {
+                return ((List<?>)ctx).get(index);
             } catch (IndexOutOfBoundsException e) {
                 return Template.NO_FETCHER_FOUND;
             }
@@ -105,14 +127,12 @@ public abstract class BasicCollector implements Mustache.Collector
         }
     };
 
-    protected static final Mustache.VariableFetcher ITER_FETCHER = new Mustache.VariableFetcher() {
-        public Object get (Object ctx, String name) throws Exception {
+    protected static final Mustache.VariableFetcher ITER_FETCHER = new IndexFetcher() {
+        public Object fetch (Object ctx, int index) {
             try {
                 Iterator<?> iter = (Iterator<?>)ctx;
-                for (int ii = 0, ll = Integer.parseInt(name); ii < ll; ii++) iter.next();
+                for (int ii = 0; ii < index; ii++) iter.next();
                 return iter.next();
-            } catch (NumberFormatException nfe) {
-                return Template.NO_FETCHER_FOUND;
             } catch (NoSuchElementException e) {
                 return Template.NO_FETCHER_FOUND;
             }
@@ -122,18 +142,43 @@ public abstract class BasicCollector implements Mustache.Collector
         }
     };
 
-    protected static abstract class ArrayHelper implements Mustache.VariableFetcher {
-        public Object get (Object ctx, String name) throws Exception {
+    protected static abstract class ArrayHelper extends IndexFetcher {
+        public Object fetch (Object ctx, int index) {
             try {
-                return get(ctx, Integer.parseInt(name));
-            } catch (NumberFormatException nfe) {
-                return Template.NO_FETCHER_FOUND;
+                return get(ctx, index);
             } catch (ArrayIndexOutOfBoundsException e) {
                 return Template.NO_FETCHER_FOUND;
             }
         }
         public abstract int length (Object ctx);
         protected abstract Object get (Object ctx, int index);
+
+        /** Returns true if this helper's elements are numbers, whose string form contains only
+          * digits, signs, decimal points, exponents, {@code NaN} or {@code Infinity}. */
+        public boolean isNumeric () {
+            return false;
+        }
+
+        /** Writes the element at {@code index} to {@code out}, formatted as {@link
+          * String#valueOf} would format it. Numeric helpers do so without boxing the element.
+          * @param scratch a buffer of at least {@link Template#SCRATCH_SIZE} characters. */
+        public void write (Object ctx, int index, Writer out, char[] scratch) throws IOException {
+            out.write(String.valueOf(get(ctx, index)));
+        }
+    }
+
+    /** A helper for arrays of integral primitives, which are written without boxing. */
+    protected static abstract class IntegralArrayHelper extends ArrayHelper {
+        protected IntegralArrayHelper () {}
+
+        @Override public boolean isNumeric () {
+            return true;
+        }
+        @Override public void write (Object ctx, int index, Writer out, char[] scratch)
+            throws IOException {
+            Template.writeLong(out, getLong(ctx, index), scratch);
+        }
+        protected abstract long getLong (Object ctx, int index);
     }
 
     protected static final ArrayHelper OBJECT_ARRAY_HELPER = new ArrayHelper() {
@@ -144,32 +189,46 @@ public abstract class BasicCollector implements Mustache.Collector
         @Override protected Object get (Object ctx, int index) { return ((boolean[])ctx)[index]; }
         @Override public int length (Object ctx) { return ((boolean[])ctx).length; }
     };
-    protected static final ArrayHelper BYTE_ARRAY_HELPER = new ArrayHelper() {
+    protected static final ArrayHelper BYTE_ARRAY_HELPER = new IntegralArrayHelper() {
         @Override protected Object get (Object ctx, int index) { return ((byte[])ctx)[index]; }
+        @Override protected long getLong (Object ctx, int index) { return ((byte[])ctx)[index]; }
         @Override public int length (Object ctx) { return ((byte[])ctx).length; }
     };
     protected static final ArrayHelper CHAR_ARRAY_HELPER = new ArrayHelper() {
         @Override protected Object get (Object ctx, int index) { return ((char[])ctx)[index]; }
         @Override public int length (Object ctx) { return ((char[])ctx).length; }
     };
-    protected static final ArrayHelper SHORT_ARRAY_HELPER = new ArrayHelper() {
+    protected static final ArrayHelper SHORT_ARRAY_HELPER = new IntegralArrayHelper() {
         @Override protected Object get (Object ctx, int index) { return ((short[])ctx)[index]; }
+        @Override protected long getLong (Object ctx, int index) { return ((short[])ctx)[index]; }
         @Override public int length (Object ctx) { return ((short[])ctx).length; }
     };
-    protected static final ArrayHelper INT_ARRAY_HELPER = new ArrayHelper() {
+    protected static final ArrayHelper INT_ARRAY_HELPER = new IntegralArrayHelper() {
         @Override protected Object get (Object ctx, int index) { return ((int[])ctx)[index]; }
+        @Override protected long getLong (Object ctx, int index) { return ((int[])ctx)[index]; }
         @Override public int length (Object ctx) { return ((int[])ctx).length; }
     };
-    protected static final ArrayHelper LONG_ARRAY_HELPER = new ArrayHelper() {
+    protected static final ArrayHelper LONG_ARRAY_HELPER = new IntegralArrayHelper() {
         @Override protected Object get (Object ctx, int index) { return ((long[])ctx)[index]; }
+        @Override protected long getLong (Object ctx, int index) { return ((long[])ctx)[index]; }
         @Override public int length (Object ctx) { return ((long[])ctx).length; }
     };
     protected static final ArrayHelper FLOAT_ARRAY_HELPER = new ArrayHelper() {
         @Override protected Object get (Object ctx, int index) { return ((float[])ctx)[index]; }
         @Override public int length (Object ctx) { return ((float[])ctx).length; }
+        @Override public boolean isNumeric () { return true; }
+        @Override public void write (Object ctx, int index, Writer out, char[] scratch)
+            throws IOException {
+            out.write(Float.toString(((float[])ctx)[index]));
+        }
     };
     protected static final ArrayHelper DOUBLE_ARRAY_HELPER = new ArrayHelper() {
         @Override protected Object get (Object ctx, int index) { return ((double[])ctx)[index]; }
         @Override public int length (Object ctx) { return ((double[])ctx).length; }
+        @Override public boolean isNumeric () { return true; }
+        @Override public void write (Object ctx, int index, Writer out, char[] scratch)
+            throws IOException {
+            out.write(Double.toString(((double[])ctx)[index]));
+        }
     };
 }
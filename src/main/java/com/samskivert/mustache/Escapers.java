@@ -6,6 +6,9 @@ package com.samskivert.mustache;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Defines some standard {@link Mustache.Escaper}s.
@@ -33,23 +36,65 @@ public class Escapers
         }
     };
 
-    /** Returns an escaper that replaces a list of text sequences with canned replacements.
-     * @param repls a list of {@code (text, replacement)} pairs. */
+    /** Returns an escaper that replaces a list of text sequences with canned replacements. The
+     * text is escaped in a single pass: where more than one sequence matches at the same position,
+     * the longest is replaced, and replacements are never themselves escaped.
+     * @param repls a list of {@code (text, replacement)} pairs.
+     * @throws IllegalArgumentException if any text sequence is empty. */
     public static Mustache.Escaper simple (final String[]... repls) {
         String[] lookupTable = Lookup7bitEscaper.createTable(repls);
         if (lookupTable != null) {
             return new Lookup7bitEscaper(lookupTable);
         }
-        // our lookup replacements are not 7 bit ascii.
-        return new Mustache.Escaper() {
-            @Override public String escape (String text) {
-                for (String[] escape : repls) {
-                    text = text.replace(escape[0], escape[1]);
+        // our lookup replacements are not 7 bit ascii, or not single characters
+        return new TrieEscaper(repls);
+    }
+
+    /** Appends the characters of {@code text} from {@code start} (inclusive) to {@code end}
+     * (exclusive) to {@code a}. Escapers should append the unescaped runs of their input via this
+     * method rather than {@link Appendable#append(CharSequence,int,int)}, because {@link Writer}
+     * implements the latter by creating a subsequence (and thus a new string), whereas this
+     * method writes a string's characters to a writer via {@link Writer#write(String,int,int)},
+     * which does not. */
+    public static void append (Appendable a, CharSequence text, int start, int end)
+        throws IOException {
+        if (a instanceof Writer && text instanceof String) {
+            ((Writer)a).write((String)text, start, end - start);
+        } else {
+            a.append(text, start, end);
+        }
+    }
+
+    /** Returns whether {@code escaper} might replace any of {@code chars}. This is true for any
+     * escaper that is not one of our own, as we can't know what it will do. */
+    static boolean mayEscape (Mustache.Escaper escaper, String chars) {
+        if (escaper == NONE) {
+            return false;
+        }
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (escaper instanceof Lookup7bitEscaper) {
+                if (((Lookup7bitEscaper)escaper).escapes(c)) {
+                    return true;
+                }
+            } else if (escaper instanceof TrieEscaper) {
+                if (((TrieEscaper)escaper).mayStart(c)) {
+                    return true;
                 }
-                return text;
+            } else {
+                return true;
             }
-        };
+        }
+        return false;
+    }
+
+    /** Returns the UTF-8 encoded replacements used by {@code escaper}, indexed by the (7 bit)
+     * character they replace, or null if {@code escaper} does not escape via such a table. */
+    static /* @Nullable */ byte[][] utf8Table (Mustache.Escaper escaper) {
+        return (escaper instanceof Lookup7bitEscaper) ?
+            ((Lookup7bitEscaper)escaper).utf8Table : null;
     }
+
     // This is based on benchmarking: https://github.com/jstachio/escape-benchmark
     private static class Lookup7bitEscaper implements Mustache.Escaper {
         /*
@@ -57,11 +102,29 @@ public class Escapers
          * characters
          */
         private final String[] lookupTable;
+        /*
+         * The same replacements pre-encoded as UTF-8, for escaping directly
+         * into a byte stream
+         */
+        final byte[][] utf8Table;
+        /*
+         * Whether each 7 bit character has a replacement, see escapes(char)
+         */
+        private final boolean[] escaped = new boolean[128];
 
         private Lookup7bitEscaper(
                 String[] lookupTable) {
             super();
             this.lookupTable = lookupTable;
+            for (int i = 0; i < 128; i++) {
+                escaped[i] = lookupTable[i] != null;
+            }
+            this.utf8Table = new byte[lookupTable.length][];
+            for (int i = 0; i < lookupTable.length; i++) {
+                if (lookupTable[i] != null) {
+                    utf8Table[i] = lookupTable[i].getBytes(StandardCharsets.UTF_8);
+                }
+            }
         }
 
         static /* @Nullable */ String[] createTable (String[][] mappings) {
@@ -83,6 +146,18 @@ public class Escapers
 
         @Override
         public void escape (Appendable a, CharSequence raw) throws IOException {
+            /*
+             * This is kept small (as are the methods it calls) so that it can be
+             * inlined, which matters when escaping many short strings
+             */
+            if (raw instanceof String) {
+                escape(a, (String)raw, indexOfEscape((String)raw, 0));
+            } else {
+                escapeSequence(a, raw);
+            }
+        }
+
+        private void escapeSequence (Appendable a, CharSequence raw) throws IOException {
             int end = raw.length();
             for (int i = 0, start = 0; i < end; i++) {
                 char c = raw.charAt(i);
@@ -93,25 +168,63 @@ public class Escapers
                  * to be not changed creates a fast path for strings with no escaping needed.
                  */
                 if (found != null) {
-                    a.append(raw, 0, i);
+                    append(a, raw, 0, i);
                     a.append(found);
                     start = i = i + 1;
                     for (; i < end; i++) {
                         c = raw.charAt(i);
                         found = escapeChar(lookupTable, c);
                         if (found != null) {
-                            a.append(raw, start, i);
+                            append(a, raw, start, i);
                             a.append(found);
                             start = i + 1;
                         }
                     }
-                    a.append(raw, start, end);
+                    append(a, raw, start, end);
                     return;
                 }
             }
             a.append(raw);
         }
 
+        /* Returns whether c has a replacement */
+        boolean escapes (char c) {
+            return c < 128 && escaped[c];
+        }
+
+        /*
+         * Most text needs no escaping, so for strings we scan for the next character
+         * to escape and then append the clean run before it in bulk. The scan starts
+         * at i, the index of the first character to escape (or -1).
+         */
+        private void escape (Appendable a, String raw, int i) throws IOException {
+            if (i < 0) {
+                a.append(raw);
+            } else {
+                escapeFrom(a, raw, i);
+            }
+        }
+
+        private void escapeFrom (Appendable a, String raw, int i) throws IOException {
+            int start = 0;
+            do {
+                append(a, raw, start, i);
+                a.append(lookupTable[raw.charAt(i)]);
+                start = i + 1;
+            } while ((i = indexOfEscape(raw, start)) >= 0);
+            append(a, raw, start, raw.length());
+        }
+
+        /* Returns the index of the first character to escape at or after from, or -1 */
+        private int indexOfEscape (String raw, int from) {
+            for (int i = from, end = raw.length(); i < end; i++) {
+                if (escapes(raw.charAt(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
         private static /* @Nullable */ String escapeChar (String[] lookupTable, char c) {
             if (c > 127) {
                 return null;
@@ -121,9 +234,13 @@ public class Escapers
 
         @Override
         public String escape (String raw) {
-            StringBuilder sb = new StringBuilder(raw.length());
+            int i = indexOfEscape(raw, 0);
+            if (i < 0) {
+                return raw;
+            }
+            StringBuilder sb = new StringBuilder(raw.length() + 16);
             try {
-                escape(sb, raw);
+                escape(sb, raw, i);
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
@@ -144,4 +261,127 @@ public class Escapers
             return sb.toString();
         }
     }
+
+    /*
+     * Escapes via a trie of the text sequences to be replaced, so that arbitrary
+     * (multi-character, non-ASCII) sequences can be replaced in a single pass.
+     */
+    private static class TrieEscaper implements Mustache.Escaper {
+        private static final class Node {
+            char[] labels = new char[0];
+            Node[] children = new Node[0];
+            /* @Nullable */ String replacement;
+
+            /* @Nullable */ Node child (char c) {
+                int idx = Arrays.binarySearch(labels, c);
+                return (idx < 0) ? null : children[idx];
+            }
+
+            Node addChild (char c) {
+                int idx = Arrays.binarySearch(labels, c);
+                if (idx >= 0) {
+                    return children[idx];
+                }
+                // keep our labels sorted so that we can binary search them
+                int at = -idx - 1;
+                char[] nlabels = new char[labels.length + 1];
+                Node[] nchildren = new Node[children.length + 1];
+                System.arraycopy(labels, 0, nlabels, 0, at);
+                System.arraycopy(children, 0, nchildren, 0, at);
+                nlabels[at] = c;
+                nchildren[at] = new Node();
+                System.arraycopy(labels, at, nlabels, at + 1, labels.length - at);
+                System.arraycopy(children, at, nchildren, at + 1, children.length - at);
+                labels = nlabels;
+                children = nchildren;
+                return nchildren[at];
+            }
+        }
+
+        private final Node root = new Node();
+        /*
+         * Bitmasks of the 7 bit characters that start a sequence, and whether any
+         * sequence starts with a character outside 7 bits, which let us quickly skip
+         * characters that cannot start a match
+         */
+        private final long lowMask, highMask;
+        private final boolean[] escaped = new boolean[128];
+        private final boolean anyHigh;
+
+        TrieEscaper (String[][] repls) {
+            long lowMask = 0, highMask = 0;
+            boolean anyHigh = false;
+            for (String[] entry : repls) {
+                String key = entry[0];
+                if (key.isEmpty()) {
+                    throw new IllegalArgumentException("Escaped text may not be empty");
+                }
+                Node node = root;
+                for (int i = 0; i < key.length(); i++) {
+                    node = node.addChild(key.charAt(i));
+                }
+                // the first mapping for a sequence wins, as it would if replacing in order
+                if (node.replacement == null) {
+                    node.replacement = entry[1];
+                }
+                char c = key.charAt(0);
+                if (c < 64) lowMask |= 1L << c;
+                else if (c < 128) highMask |= 1L << c;
+                else anyHigh = true;
+            }
+            this.lowMask = lowMask;
+            this.highMask = highMask;
+            this.anyHigh = anyHigh;
+        }
+
+        @Override
+        public void escape (Appendable a, CharSequence raw) throws IOException {
+            int end = raw.length(), start = 0;
+            for (int i = 0; i < end; ) {
+                if (!mayStart(raw.charAt(i))) {
+                    i++;
+                    continue;
+                }
+                // find the longest sequence that starts at i
+                String replacement = null;
+                int matchEnd = i;
+                Node node = root;
+                for (int j = i; j < end && (node = node.child(raw.charAt(j))) != null; j++) {
+                    if (node.replacement != null) {
+                        replacement = node.replacement;
+                        matchEnd = j + 1;
+                    }
+                }
+                if (replacement == null) {
+                    i++;
+                    continue;
+                }
+                append(a, raw, start, i);
+                a.append(replacement);
+                start = i = matchEnd;
+            }
+            if (start == 0) {
+                a.append(raw);
+            } else {
+                append(a, raw, start, end);
+            }
+        }
+
+        /* Returns whether c starts any of the sequences we replace */
+        boolean mayStart (char c) {
+            return (c < 64) ? (lowMask & (1L << c)) != 0 :
+                (c < 128) ? (highMask & (1L << c)) != 0 : anyHigh;
+        }
+
+        @Override
+        public String escape (String raw) {
+            StringBuilder sb = new StringBuilder(raw.length() + 16);
+            try {
+                escape(sb, raw);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return sb.toString();
+        }
+    }
 }
@@ -8,13 +8,17 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -81,6 +85,28 @@ public class Mustache {
         /** The delimiters used by default in templates compiled with this compiler. */
         public final Delims delims;
 
+        /** Whether or not templates are rebuilt into an optimized form for execution. See
+          * {@link #optimize(boolean)}. */
+        public final boolean optimize;
+
+        /** The number of executions after which a template that was not optimized when compiled
+          * is optimized in the background, or zero if templates are never optimized lazily. See
+          * {@link #optimizeAfter(int)}. */
+        public final int optimizeAfter;
+
+        /** Whether or not a compound name like {@code foo.bar} is first looked up whole (as the
+          * single key {@code "foo.bar"}) before being resolved component by component. See
+          * {@link #wholeCompoundNames(boolean)}. */
+        public final boolean wholeCompoundNames;
+
+        /** Whether or not templates are executed using an explicit stack rather than recursion.
+          * See {@link #explicitStack(boolean)}. */
+        public final boolean explicitStack;
+
+        /** The text of comments which mark points at which output is flushed, or null. See
+          * {@link #flushComment(String)}. */
+        public final String flushComment;
+
         /** Compiles the supplied template into a repeatedly executable intermediate form. */
         public Template compile (String template) {
             return compile(new StringReader(template));
@@ -104,7 +130,8 @@ public class Mustache {
             return new Compiler(standardsMode, this.strictSections, this.nullValue,
                                 this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
                                 this.formatter, this.escaper, this.loader, this.collector,
-                                this.delims);
+                                this.delims, this.optimize, this.optimizeAfter,
+                                this.wholeCompoundNames, this.explicitStack, this.flushComment);
         }
 
         /** Returns a compiler that throws an exception when a section references a missing value
@@ -114,7 +141,8 @@ public class Mustache {
             return new Compiler(this.standardsMode, strictSections, this.nullValue,
                                 this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
                                 this.formatter, this.escaper, this.loader, this.collector,
-                                this.delims);
+                                this.delims, this.optimize, this.optimizeAfter,
+                                this.wholeCompoundNames, this.explicitStack, this.flushComment);
         }
 
         /** Returns a compiler that will use the given value for any variable that is missing, or
@@ -123,7 +151,9 @@ public class Mustache {
         public Compiler defaultValue (String defaultValue) {
             return new Compiler(this.standardsMode, this.strictSections, defaultValue, true,
                                 this.emptyStringIsFalse, this.zeroIsFalse, this.formatter,
-                                this.escaper, this.loader, this.collector, this.delims);
+                                this.escaper, this.loader, this.collector, this.delims,
+                                this.optimize, this.optimizeAfter, this.wholeCompoundNames,
+                                this.explicitStack, this.flushComment);
         }
 
         /** Returns a compiler that will use the given value for any variable that resolves to
@@ -140,7 +170,9 @@ public class Mustache {
         public Compiler nullValue (String nullValue) {
             return new Compiler(this.standardsMode, this.strictSections, nullValue, false,
                                 this.emptyStringIsFalse, this.zeroIsFalse, this.formatter,
-                                this.escaper, this.loader, this.collector, this.delims);
+                                this.escaper, this.loader, this.collector, this.delims,
+                                this.optimize, this.optimizeAfter, this.wholeCompoundNames,
+                                this.explicitStack, this.flushComment);
         }
 
         /** Returns a compiler that will treat empty string as a false value if parameter is true. */
@@ -148,7 +180,8 @@ public class Mustache {
             return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
                                 this.missingIsNull, emptyStringIsFalse, this.zeroIsFalse,
                                 this.formatter, this.escaper, this.loader, this.collector,
-                                this.delims);
+                                this.delims, this.optimize, this.optimizeAfter,
+                                this.wholeCompoundNames, this.explicitStack, this.flushComment);
         }
 
         /** Returns a compiler that will treat zero as a false value if parameter is true. */
@@ -156,35 +189,44 @@ public class Mustache {
             return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
                                 this.missingIsNull, this.emptyStringIsFalse, zeroIsFalse,
                                 this.formatter, this.escaper, this.loader, this.collector,
-                                this.delims);
+                                this.delims, this.optimize, this.optimizeAfter,
+                                this.wholeCompoundNames, this.explicitStack, this.flushComment);
         }
 
         /** Configures the {@link Formatter} used to turn objects into strings. */
         public Compiler withFormatter (Formatter formatter) {
             return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
                                 this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
-                                formatter, this.escaper, this.loader, this.collector, this.delims);
+                                formatter, this.escaper, this.loader, this.collector, this.delims,
+                                this.optimize, this.optimizeAfter, this.wholeCompoundNames,
+                                this.explicitStack, this.flushComment);
         }
 
         /** Configures the {@link Escaper} used to escape substituted text. */
         public Compiler withEscaper (Escaper escaper) {
             return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
                                 this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
-                                this.formatter, escaper, this.loader, this.collector, this.delims);
+                                this.formatter, escaper, this.loader, this.collector, this.delims,
+                                this.optimize, this.optimizeAfter, this.wholeCompoundNames,
+                                this.explicitStack, this.flushComment);
         }
 
         /** Returns a compiler configured to use the supplied template loader to handle partials. */
         public Compiler withLoader (TemplateLoader loader) {
             return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
                                 this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
-                                this.formatter, this.escaper, loader, this.collector, this.delims);
+                                this.formatter, this.escaper, loader, this.collector, this.delims,
+                                this.optimize, this.optimizeAfter, this.wholeCompoundNames,
+                                this.explicitStack, this.flushComment);
         }
 
         /** Returns a compiler configured to use the supplied collector. */
         public Compiler withCollector (Collector collector) {
             return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
                                 this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
-                                this.formatter, this.escaper, this.loader, collector, this.delims);
+                                this.formatter, this.escaper, this.loader, collector, this.delims,
+                                this.optimize, this.optimizeAfter, this.wholeCompoundNames,
+                                this.explicitStack, this.flushComment);
         }
 
         /** Returns a compiler configured to use the supplied delims as default delimiters.
@@ -194,7 +236,85 @@ public class Mustache {
             return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
                                 this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
                                 this.formatter, this.escaper, this.loader, this.collector,
-                                new Delims().updateDelims(delims));
+                                new Delims().updateDelims(delims), this.optimize,
+                                this.optimizeAfter, this.wholeCompoundNames, this.explicitStack,
+                                this.flushComment);
+        }
+
+        /** Returns a compiler that either does or does not optimize the templates it compiles.
+          * An optimized template is executed from a copy of its parsed form from which comments,
+          * delimiter changes and text trimmed away by standalone tag processing are dropped (and
+          * the text around them joined into a single segment). Variables and sections also decide
+          * up front how their name is resolved (special variables, standards mode, compound keys)
+          * and how their value is formatted and escaped, rather than making those decisions on
+          * every execution. Each segment is still executed in turn. This reduces the work done on
+          * every execution, at the cost of some extra work (and memory) at compile time. The
+          * output of an optimized template is identical to that of an unoptimized template. */
+        public Compiler optimize (boolean optimize) {
+            return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
+                                this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
+                                this.formatter, this.escaper, this.loader, this.collector,
+                                this.delims, optimize, this.optimizeAfter, this.wholeCompoundNames,
+                                this.explicitStack, this.flushComment);
+        }
+
+        /** Returns a compiler whose templates are optimized (see {@link #optimize(boolean)}) once
+          * they have been executed {@code executions} times, or never if {@code executions} is
+          * zero. This allows rarely used templates to avoid the cost of optimization, while
+          * frequently used templates are optimized shortly after they start being used. The
+          * optimization is performed in the background (via the common fork-join pool) and the
+          * template continues to execute in unoptimized form until it completes. The default is
+          * {@code 1000} executions. */
+        public Compiler optimizeAfter (int executions) {
+            if (executions < 0) throw new IllegalArgumentException(
+                "Executions must be non-negative: " + executions);
+            return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
+                                this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
+                                this.formatter, this.escaper, this.loader, this.collector,
+                                this.delims, this.optimize, executions, this.wholeCompoundNames,
+                                this.explicitStack, this.flushComment);
+        }
+
+        /** Returns a compiler that either does or does not look up compound names whole before
+          * decomposing them. When enabled, {@code {{foo.bar}}} will first be sought as the key
+          * {@code "foo.bar"} in the current context and all of its parents (which is useful for
+          * maps with dotted keys), and only if that fails will {@code foo} be resolved and
+          * {@code bar} resolved on its value. This probe fails for most contexts, so it is
+          * disabled by default. */
+        public Compiler wholeCompoundNames (boolean wholeCompoundNames) {
+            return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
+                                this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
+                                this.formatter, this.escaper, this.loader, this.collector,
+                                this.delims, this.optimize, this.optimizeAfter,
+                                wholeCompoundNames, this.explicitStack, this.flushComment);
+        }
+
+        /** Returns a compiler whose templates either do or do not execute using an explicit stack
+          * of pending work, rather than by recursing into sections and partials on the Java stack.
+          * This allows templates to render arbitrarily deep data (like trees rendered via a
+          * partial that includes itself) without overflowing the thread's stack, and allows
+          * templates to be executed on threads with small stacks. Lambdas are still called
+          * recursively, as are any fragments they execute. */
+        public Compiler explicitStack (boolean explicitStack) {
+            return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
+                                this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
+                                this.formatter, this.escaper, this.loader, this.collector,
+                                this.delims, this.optimize, this.optimizeAfter,
+                                this.wholeCompoundNames, explicitStack, this.flushComment);
+        }
+
+        /** Returns a compiler which treats comments containing (only) {@code comment}, like
+          * <code>{{! flush }}</code>, as points at which to flush the writer to which a template
+          * is being executed. This allows the early parts of a page to reach their destination
+          * (a browser, say) while the rest of the page is still being rendered. The comments
+          * otherwise behave exactly like any other comment, so they are harmless to other
+          * Mustache implementations. Supply null to disable flush points. */
+        public Compiler flushComment (String comment) {
+            return new Compiler(this.standardsMode, this.strictSections, this.nullValue,
+                                this.missingIsNull, this.emptyStringIsFalse, this.zeroIsFalse,
+                                this.formatter, this.escaper, this.loader, this.collector,
+                                this.delims, this.optimize, this.optimizeAfter,
+                                this.wholeCompoundNames, this.explicitStack, comment);
         }
 
         /** Returns the value to use in the template for the null-valued property {@code name}. See
@@ -254,7 +374,9 @@ public class Mustache {
         protected Compiler (boolean standardsMode, boolean strictSections, String nullValue,
                             boolean missingIsNull, boolean emptyStringIsFalse, boolean zeroIsFalse,
                             Formatter formatter, Escaper escaper, TemplateLoader loader,
-                            Collector collector, Delims delims) {
+                            Collector collector, Delims delims, boolean optimize,
+                            int optimizeAfter, boolean wholeCompoundNames, boolean explicitStack,
+                            String flushComment) {
             this.standardsMode = standardsMode;
             this.strictSections = strictSections;
             this.nullValue = nullValue;
@@ -266,6 +388,11 @@ public class Mustache {
             this.loader = loader;
             this.collector = collector;
             this.delims = delims;
+            this.optimize = optimize;
+            this.optimizeAfter = optimizeAfter;
+            this.wholeCompoundNames = wholeCompoundNames;
+            this.explicitStack = explicitStack;
+            this.flushComment = flushComment;
         }
     }
 
@@ -274,6 +401,21 @@ public class Mustache {
 
         /** Converts {@code value} to a CharSequence for inclusion in a template. */
         CharSequence format (Object value);
+
+        /** Appends {@code value}, formatted, to {@code out}. This is used (instead of {@link
+          * #format}) when the formatted value will not be escaped, and allows formatters to avoid
+          * creating an intermediate string. The default implementation appends the result of
+          * {@link #format}. */
+        default void formatTo (Object value, Appendable out) throws IOException {
+            out.append(format(value));
+        }
+
+        /** Appends {@code value}, formatted, to {@code out}. This is used for {@code -index},
+          * which is available without being boxed, when it will not be escaped. See {@link
+          * #formatTo(Object,Appendable)}. The default implementation formats the boxed value. */
+        default void formatTo (int value, Appendable out) throws IOException {
+            formatTo(Integer.valueOf(value), out);
+        }
     }
 
     /** Handles lambdas. */
@@ -320,7 +462,9 @@ public class Mustache {
 
         /**
           * Escapes the raw characters with escape sequeneces if needed and appends to the appendable.
-          * The default implementation calls {@link #escape(CharSequence)}.
+          * The default implementation calls {@link #escape(CharSequence)}. Implementations that
+          * append unescaped runs of {@code raw} should do so via {@link Escapers#append}, which
+          * avoids creating a string for each run when {@code a} is a {@link Writer}.
           * @param a the stream like to append to.
           * @param raw input string.
           * @throws IOException if an error happens while writing to the appendable.
@@ -330,6 +474,56 @@ public class Mustache {
         }
     }
 
+    /**
+     * Text which is already safe to include in a template's output, like HTML rendered by another
+     * template, or sanitized markup. When a variable's value is safe text, it is written as-is,
+     * without being formatted or escaped. Safe text may also carry its UTF-8 encoding, which is
+     * then written as-is to byte-oriented outputs (like {@link Template#execute(Object,
+     * java.io.OutputStream)}).
+     */
+    public static final class SafeText implements CharSequence {
+        /** Creates safe text, from the current contents of {@code text}, which will be encoded as
+          * needed. */
+        public SafeText (CharSequence text) {
+            this(text, null);
+        }
+
+        /** Creates safe text, from the current contents of {@code text}, with its existing UTF-8
+          * encoding, {@code utf8}, which must not be modified thereafter. */
+        public SafeText (CharSequence text, byte[] utf8) {
+            if (text == null) throw new NullPointerException("text");
+            // copy mutable text, lest char and byte outputs see different versions of it
+            _text = text.toString();
+            _utf8 = utf8;
+        }
+
+        /** Returns the UTF-8 encoding of this text, encoding it (once) if needed. Byte-oriented
+          * outputs only use the encoding of safe text once it has been obtained, so a long lived
+          * snippet can call this once up front to avoid being encoded every time it is written.
+          * The returned array must not be modified. */
+        public byte[] utf8 () {
+            byte[] utf8 = _utf8;
+            if (utf8 == null) _utf8 = utf8 = _text.getBytes(StandardCharsets.UTF_8);
+            return utf8;
+        }
+
+        @Override public int length () {
+            return _text.length();
+        }
+        @Override public char charAt (int index) {
+            return _text.charAt(index);
+        }
+        @Override public CharSequence subSequence (int start, int end) {
+            return _text.subSequence(start, end);
+        }
+        @Override public String toString () {
+            return _text;
+        }
+
+        protected final String _text;
+        protected volatile byte[] _utf8;
+    }
+
     /** Handles loading partial templates. */
     public interface TemplateLoader {
 
@@ -429,7 +623,9 @@ public class Mustache {
         return new Compiler(/*standardsMode=*/false, /*strictSections=*/false, /*nullValue=*/null,
                             /*missingIsNull=*/false, /*emptyStringIsFalse=*/false,
                             /*zeroIsFalse=*/false, DEFAULT_FORMATTER, Escapers.HTML, FAILING_LOADER,
-                            new DefaultCollector(), new Delims());
+                            new DefaultCollector(), new Delims(), /*optimize=*/false,
+                            /*optimizeAfter=*/1000, /*wholeCompoundNames=*/false,
+                            /*explicitStack=*/false, /*flushComment=*/null);
     }
 
     /**
@@ -660,6 +856,54 @@ public class Mustache {
         return _segs;
     }
 
+    /**
+     * Rebuilds segments into the form executed by optimized templates: adjacent text segments are
+     * coalesced, empty text segments and non-printing (faux) segments are dropped, variables and
+     * sections are replaced by copies that make their lookup decisions up front, and the contents
+     * of sections are optimized recursively. The supplied segments are not modified, as they are
+     * still needed for decompilation, visitation and indentation.
+     * @return optimized segments or {@code segs} if nothing changed.
+     */
+    static Template.Segment[] optimizeSegs (Template.Segment[] segs, Compiler compiler) {
+        List<Template.Segment> copySegs = new ArrayList<>(segs.length);
+        boolean changed = false;
+        for (int ii = 0, ll = segs.length; ii < ll; ii++) {
+            Template.Segment seg = segs[ii];
+            if (seg instanceof StringSegment) {
+                // find the end of this run of text (skipping non-printing segments)
+                int end = ii+1, count = 1;
+                for (; end < ll; end++) {
+                    if (segs[end] instanceof StringSegment) count++;
+                    else if (segs[end].getClass() != FauxSegment.class) break;
+                }
+                if (count == 1 && end == ii+1) {
+                    if (((StringSegment)seg)._text.isEmpty()) changed = true;
+                    else copySegs.add(seg);
+                    continue;
+                }
+                StringBuilder text = new StringBuilder();
+                for (int jj = ii; jj < end; jj++) {
+                    if (segs[jj] instanceof StringSegment) text.append(((StringSegment)segs[jj])._text);
+                }
+                if (text.length() > 0) copySegs.add(new StringSegment(text.toString(), -1, -1, false));
+                changed = true;
+                ii = end-1;
+            } else if (seg.getClass() == FauxSegment.class) {
+                changed = true;
+            } else {
+                Template.Segment copy = seg;
+                if (seg instanceof AbstractSectionSegment) {
+                    copy = ((AbstractSectionSegment)seg).optimize(compiler);
+                } else if (seg.getClass() == VariableSegment.class) {
+                    copy = new OptimizedVariableSegment((VariableSegment)seg, compiler);
+                }
+                if (copy != seg) changed = true;
+                copySegs.add(copy);
+            }
+        }
+        return changed ? copySegs.toArray(new Template.Segment[copySegs.size()]) : segs;
+    }
+
     protected static void restoreStartTag (StringBuilder text, Delims starts) {
         text.insert(0, starts.start1);
         if (starts.start2 != NO_CHAR) {
@@ -971,8 +1215,9 @@ public class Mustache {
                 return addCloseSectionSegment(tag1, tagLine);
 
             case '!':
-                // comment!, ignore
-                _segs.add(new FauxSegment()); // for whitespace trimming
+                // comment!, ignore (unless it marks a flush point)
+                if (tag1.equals(_comp.flushComment)) _segs.add(new FlushSegment(tag1));
+                else _segs.add(new FauxSegment()); // for whitespace trimming
                 return this;
 
             case '&':
@@ -1071,7 +1316,19 @@ public class Mustache {
         }
 
         @Override public void execute (Template tmpl, Template.Context ctx, Writer out) {
-            write(out, _text);
+            if (out instanceof Template.Utf8Writer) {
+                try {
+                    if (out instanceof Template.ChannelWriter) {
+                        ((Template.ChannelWriter)out).writeShared(utf8(), utf8Buffer());
+                    } else {
+                        ((Template.Utf8Writer)out).writeUtf8(utf8());
+                    }
+                } catch (IOException ioe) {
+                    throw new MustacheException(ioe);
+                }
+            } else {
+                write(out, _text);
+            }
         }
         @Override public void decompile (Delims delims, StringBuilder into) {
             into.append(_text);
@@ -1079,6 +1336,19 @@ public class Mustache {
         @Override public void visit (Visitor visitor) {
             visitor.visitText(_text);
         }
+
+        protected byte[] utf8 () {
+            byte[] utf8 = _utf8;
+            if (utf8 == null) _utf8 = utf8 = _text.getBytes(StandardCharsets.UTF_8);
+            return utf8;
+        }
+
+        protected ByteBuffer utf8Buffer () {
+            ByteBuffer buffer = _utf8Buffer;
+            if (buffer == null) _utf8Buffer = buffer = ByteBuffer.wrap(utf8()).asReadOnlyBuffer();
+            return buffer;
+        }
+
         @Override public String toString () {
             return "Text(" + _text.replace("\r", "\\r").replace("\n", "\\n") + ")" +
                 _leadBlank + "/" + _trailBlank;
@@ -1117,6 +1387,10 @@ public class Mustache {
         protected final String _text;
         protected final int _leadBlank, _trailBlank;
         protected final boolean _first;
+        /** {@link #_text} encoded as UTF-8, computed on first use by a UTF-8 sink. */
+        protected volatile byte[] _utf8;
+        /** A read-only view of {@link #_utf8}, shared by all executions that write to channels. */
+        protected volatile ByteBuffer _utf8Buffer;
     }
 
     /** An abstract segment that is a template include. */
@@ -1131,6 +1405,11 @@ public class Mustache {
             // would happen if we just called execute() with ctx.data
             getTemplate().executeSegs(ctx, out);
         }
+        @Override final void execute (Template tmpl, Template.Context ctx,
+                                      Template.Interpreter interp) {
+            Template t = getTemplate();
+            interp.push(t, t.executable(), ctx);
+        }
         protected final Template getTemplate () {
             // we compile our template lazily to avoid infinie recursion if a template includes
             // itself (see issue #13)
@@ -1322,13 +1601,9 @@ public class Mustache {
         }
         @Override public void execute (Template tmpl, Template.Context ctx, Writer out) {
             Object value = tmpl.getValueOrDefault(ctx, _name, _line);
-            if (value == null) {
-                String msg = Template.isThisName(_name) ?
-                    "Resolved '.' to null (which is disallowed), on line " + _line :
-                    "No key, method or field with name '" + _name + "' on line " + _line;
-                throw new MustacheException.Context(msg, _name, _line);
-            }
-            escape(out, _formatter.format(value), _escaper);
+            if (value == null) throw nullValueError();
+            if (value instanceof SafeText) writeSafe(out, (SafeText)value);
+            else escape(out, _formatter.format(value), _escaper);
         }
         @Override public void decompile (Delims delims, StringBuilder into) {
             delims.addTag(' ', _name, into);
@@ -1347,10 +1622,106 @@ public class Mustache {
         @Override public String toString () {
             return "Var(" + _name + ":" + _line + ")";
         }
+        /** Writes {@code text} as-is (or its UTF-8 encoding, if it has one and {@code out} wants
+          * bytes), as it needs no formatting or escaping. */
+        protected static void writeSafe (Writer out, SafeText text) {
+            try {
+                byte[] utf8 = text._utf8;
+                if (utf8 != null && out instanceof Template.Utf8Writer) {
+                    ((Template.Utf8Writer)out).writeUtf8(utf8);
+                } else {
+                    out.append(text._text);
+                }
+            } catch (IOException ioe) {
+                throw new MustacheException(ioe);
+            }
+        }
+        protected MustacheException nullValueError () {
+            String msg = Template.isThisName(_name) ?
+                "Resolved '.' to null (which is disallowed), on line " + _line :
+                "No key, method or field with name '" + _name + "' on line " + _line;
+            return new MustacheException.Context(msg, _name, _line);
+        }
         protected final Formatter _formatter;
         protected final Escaper _escaper;
     }
 
+    /** A variable segment which has decided in advance how to resolve, format and escape its
+      * value. Used by optimized templates. */
+    protected static class OptimizedVariableSegment extends VariableSegment {
+        public OptimizedVariableSegment (VariableSegment original, Compiler compiler) {
+            super(original._name, original._line, original._formatter, original._escaper);
+            _resolver = Template.resolver(_name, compiler);
+            _missingIsNull = compiler.missingIsNull;
+            _nullValue = compiler.computeNullValue(_name);
+            _defaultFormat = (_formatter == DEFAULT_FORMATTER);
+            _noEscape = (_escaper == Escapers.NONE);
+            // if our escaper won't touch any character of a number, numbers need no escaping
+            _writeNumbers = _defaultFormat && !Escapers.mayEscape(_escaper, NUMBER_CHARS);
+            _isThis = (_resolver == Template.THIS_RESOLVER);
+            _isIndex = (_resolver == Template.INDEX_RESOLVER);
+        }
+        @Override public void execute (Template tmpl, Template.Context ctx, Writer out) {
+            try {
+                if (_writeNumbers && _isThis && ctx.onNumericElement()) {
+                    ctx.writeElement(out);
+                    return;
+                }
+                // format the index without boxing it, if it needs no escaping
+                if (_isIndex && _writeNumbers) {
+                    Template.writeLong(out, ctx.index, ctx.scratch());
+                    return;
+                } else if (_isIndex && _noEscape) {
+                    _formatter.formatTo(ctx.index, out);
+                    return;
+                }
+                Object value = _resolver.get(tmpl, ctx, _line, _missingIsNull);
+                if (value == null) value = _nullValue;
+                if (value == null) throw nullValueError();
+                if (_writeNumbers && writeNumber(out, value, ctx)) return;
+                if (value instanceof SafeText) {
+                    writeSafe(out, (SafeText)value);
+                    return;
+                }
+                if (_noEscape) {
+                    if (_defaultFormat && value instanceof String) out.append((String)value);
+                    else _formatter.formatTo(value, out);
+                    return;
+                }
+                CharSequence text = (_defaultFormat && value instanceof String) ?
+                    (String)value : _formatter.format(value);
+                escape(out, text, _escaper);
+            } catch (IOException ioe) {
+                throw new MustacheException(ioe);
+            }
+        }
+        /** Writes {@code value} (as {@link #DEFAULT_FORMATTER} would format it) if it is a
+          * number that can be written without creating an intermediate string.
+          * @return true if the value was written, false if it was not such a number. */
+        protected static boolean writeNumber (Writer out, Object value, Template.Context ctx)
+            throws IOException {
+            if (value instanceof Integer || value instanceof Long ||
+                value instanceof Short || value instanceof Byte) {
+                Template.writeLong(out, ((Number)value).longValue(), ctx.scratch());
+                return true;
+            }
+            // a builder formats floating point numbers in place
+            if (out instanceof Template.BuilderWriter) {
+                StringBuilder buffer = ((Template.BuilderWriter)out).buffer;
+                if (value instanceof Double) buffer.append(((Double)value).doubleValue());
+                else if (value instanceof Float) buffer.append(((Float)value).floatValue());
+                else return false;
+                return true;
+            }
+            return false;
+        }
+
+        protected final Template.Resolver _resolver;
+        protected final boolean _missingIsNull, _defaultFormat, _noEscape, _writeNumbers, _isThis;
+        protected final boolean _isIndex;
+        protected final String _nullValue;
+    }
+
     protected interface StandaloneSection extends BlockReplaceable {
         default boolean firstLeadsBlank () {
             Template.Segment[] _segs = _segs();
@@ -1391,12 +1762,14 @@ public class Mustache {
             super(name, line);
             _comp = compiler;
             _segs = trim(segs, false);
+            _kindByClass = kindByClass(compiler.collector);
         }
         protected AbstractSectionSegment (AbstractSectionSegment original, Template.Segment[] segs) {
             super(original._name, original._line);
             _comp = original._comp;
             // this call assumes the segments are already trimmed
             _segs = segs;
+            _kindByClass = original._kindByClass;
         }
 
         protected void executeSegs (Template tmpl, Template.Context ctx, Writer out) {
@@ -1407,6 +1780,19 @@ public class Mustache {
 
         protected abstract AbstractSectionSegment indent (String indent, boolean first, boolean last);
 
+        /** Returns a copy of this segment with its contents optimized, or this segment if no
+          * optimization was possible. See {@link Mustache#optimizeSegs}. */
+        protected abstract AbstractSectionSegment optimize (Compiler compiler);
+
+        /** Returns the value of this section's variable in {@code ctx}. This will not return
+          * null. See {@link Template#getSectionValue}. */
+        protected Object getSectionValue (Template tmpl, Template.Context ctx) {
+            Template.Resolver resolver = _resolver;
+            if (resolver == null) return tmpl.getSectionValue(ctx, _name, _line);
+            Object value = resolver.get(tmpl, ctx, _line, !_comp.strictSections);
+            return (value == null) ? Collections.emptyList() : value;
+        }
+
         @Override public boolean isStandalone() { return _standaloneEnd; }
         @Override public boolean isStandaloneStart() { return _standaloneStart; }
         @Override public boolean isStandaloneEnd() { return _standaloneEnd; }
@@ -1419,6 +1805,89 @@ public class Mustache {
         protected final Template.Segment[] _segs;
         protected boolean _standaloneStart = false;
         protected boolean _standaloneEnd = false;
+        /** The resolver for this section's value; only set on optimized copies. */
+        protected Template.Resolver _resolver;
+
+        /** Returns the kind of value previously observed by this section for values of the same
+          * class as {@code value}, or {@link #UNKNOWN} if {@code value} must be classified. A
+          * section which has only ever seen one class of value need not ask the collector whether
+          * a non-collection value is a collection, nor repeat the instanceof checks that follow.
+          * Kinds are only remembered for collectors known to classify values by class alone. */
+        protected final int knownKind (Object value) {
+            if (!_kindByClass) return UNKNOWN;
+            ValueKind known = _kind;
+            return (known != null && known.vclass == value.getClass()) ? known.kind : UNKNOWN;
+        }
+
+        /** Classifies {@code value}, given its iterator ({@code iter}) as provided by the
+          * collector (which may be null), and records the result for {@link #knownKind}. Once this
+          * section has seen more than one class or kind of value, nothing more is recorded and
+          * every value is classified from scratch. */
+        protected final int observeKind (Object value, Iterator<?> iter) {
+            int kind;
+            if (iter != null) kind = ITERABLE;
+            else if (value instanceof Boolean) kind = BOOLEAN;
+            else if (value instanceof Lambda) kind = LAMBDA;
+            else kind = OBJECT;
+            if (!_kindByClass) return kind;
+
+            ValueKind known = _kind;
+            if (known == null) _kind = new ValueKind(value.getClass(), kind);
+            else if (known != ValueKind.POLYMORPHIC && (known.vclass != value.getClass() ||
+                                                        known.kind != kind)) {
+                _kind = ValueKind.POLYMORPHIC;
+            }
+            return kind;
+        }
+
+        /** Returns true if {@code value}, which is known to be iterable, is an array or a list
+          * whose elements can be accessed by index rather than via an iterator. This is only
+          * assumed when using a {@link BasicCollector}, which iterates over these in order. */
+        protected final boolean isIndexed (Object value) {
+            return ((value instanceof RandomAccess && value instanceof List<?>) ||
+                    value.getClass().isArray()) && _comp.collector instanceof BasicCollector;
+        }
+
+        /** Returns true if {@code value}, which is known to be iterable, is a collection which can
+          * be asked whether it is empty rather than via an iterator. See {@link #isIndexed}. */
+        protected final boolean isCollection (Object value) {
+            return value instanceof Collection<?> && _comp.collector instanceof BasicCollector;
+        }
+
+        /** Returns true if {@code collector} decides whether a value is a collection based only
+          * on its class, which is the case if it uses {@link BasicCollector#toIterator} as is. A
+          * collector which overrides that method may decide differently for each value. */
+        protected static boolean kindByClass (Collector collector) {
+            if (!(collector instanceof BasicCollector)) return false;
+            try {
+                return collector.getClass().getMethod("toIterator", Object.class).
+                    getDeclaringClass() == BasicCollector.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+
+        /** The kind of value seen by this section, see {@link #knownKind}. */
+        protected ValueKind _kind;
+        /** Whether value kinds can be remembered by class, see {@link #kindByClass}. */
+        protected final boolean _kindByClass;
+
+        protected static final int UNKNOWN = -1, ITERABLE = 0, BOOLEAN = 1, LAMBDA = 2, OBJECT = 3;
+    }
+
+    /** Records the kind of value seen by a section for values of a particular class. */
+    protected static final class ValueKind {
+        /** Used by sections which have seen more than one class or kind of value. */
+        public static final ValueKind POLYMORPHIC =
+            new ValueKind(null, AbstractSectionSegment.UNKNOWN);
+
+        public final Class<?> vclass;
+        public final int kind;
+
+        public ValueKind (Class<?> vclass, int kind) {
+            this.vclass = vclass;
+            this.kind = kind;
+        }
     }
 
     /** A segment that represents a section. */
@@ -1430,29 +1899,94 @@ public class Mustache {
             super(original, segs);
         }
         @Override public void execute (Template tmpl, Template.Context ctx, Writer out) {
-            Object value = tmpl.getSectionValue(ctx, _name, _line); // won't return null
-            Iterator<?> iter = _comp.collector.toIterator(value);
-            if (iter != null) {
-                int index = 0;
-                while (iter.hasNext()) {
-                    Object elem = iter.next();
-                    boolean onFirst = (index == 0), onLast = !iter.hasNext();
-                    executeSegs(tmpl, ctx.nest(elem, ++index, onFirst, onLast), out);
+            Object value = getSectionValue(tmpl, ctx); // won't return null
+            Iterator<?> iter = null;
+            int kind = knownKind(value);
+            if (kind == UNKNOWN || (kind == ITERABLE && !isIndexed(value))) {
+                iter = _comp.collector.toIterator(value);
+                kind = observeKind(value, iter);
+                // iterate over lists and arrays by index even when we're first seeing them
+                if (kind == ITERABLE && isIndexed(value)) iter = null;
+            }
+            switch (kind) {
+            case ITERABLE:
+                if (iter == null && value instanceof List<?>) {
+                    List<?> list = (List<?>)value;
+                    for (int ii = 0, last = list.size()-1; ii <= last; ii++) {
+                        executeSegs(tmpl, ctx.child(list.get(ii), ii+1, ii == 0, ii == last), out);
+                    }
+                } else if (iter == null) {
+                    // elements are bound without being extracted, to avoid boxing primitives
+                    BasicCollector.ArrayHelper helper = BasicCollector.arrayHelper(value);
+                    for (int ii = 0, last = helper.length(value)-1; ii <= last; ii++) {
+                        executeSegs(tmpl, ctx.child(value, helper, ii, ii+1, ii == 0, ii == last),
+                                    out);
+                    }
+                } else {
+                    int index = 0;
+                    while (iter.hasNext()) {
+                        Object elem = iter.next();
+                        // whether this is the last element is only determined if someone asks
+                        executeSegs(tmpl, ctx.child(elem, ++index, index == 1, iter), out);
+                    }
                 }
-            } else if (value instanceof Boolean) {
+                break;
+            case BOOLEAN:
                 if ((Boolean)value) {
                     executeSegs(tmpl, ctx, out);
                 }
-            } else if (value instanceof Lambda) {
+                break;
+            case LAMBDA:
                 try {
                     ((Lambda)value).execute(tmpl.createFragment(_segs, ctx), out);
                 } catch (IOException ioe) {
                     throw new MustacheException(ioe);
                 }
-            } else if (_comp.isFalsey(value)) {
-                // omit the section
-            } else {
-                executeSegs(tmpl, ctx.nest(value), out);
+                break;
+            default:
+                if (!_comp.isFalsey(value)) {
+                    executeSegs(tmpl, ctx.child(value), out);
+                } // otherwise omit the section
+                break;
+            }
+        }
+        @Override void execute (Template tmpl, Template.Context ctx, Template.Interpreter interp) {
+            Object value = getSectionValue(tmpl, ctx); // won't return null
+            Iterator<?> iter = null;
+            int kind = knownKind(value);
+            if (kind == UNKNOWN || (kind == ITERABLE && !isIndexed(value))) {
+                iter = _comp.collector.toIterator(value);
+                kind = observeKind(value, iter);
+                // iterate over lists and arrays by index even when we're first seeing them
+                if (kind == ITERABLE && isIndexed(value)) iter = null;
+            }
+            switch (kind) {
+            case ITERABLE:
+                if (iter == null && value instanceof List<?>) {
+                    interp.pushList(tmpl, _segs, ctx, (List<?>)value);
+                } else if (iter == null) {
+                    interp.pushArray(tmpl, _segs, ctx, value, BasicCollector.arrayHelper(value));
+                } else {
+                    interp.pushLoop(tmpl, _segs, ctx, iter);
+                }
+                break;
+            case BOOLEAN:
+                if ((Boolean)value) {
+                    interp.push(tmpl, _segs, ctx);
+                }
+                break;
+            case LAMBDA:
+                try {
+                    ((Lambda)value).execute(tmpl.createFragment(_segs, ctx), interp.out);
+                } catch (IOException ioe) {
+                    throw new MustacheException(ioe);
+                }
+                break;
+            default:
+                if (!_comp.isFalsey(value)) {
+                    interp.push(tmpl, _segs, ctx.child(value));
+                } // otherwise omit the section
+                break;
             }
         }
         @Override public void decompile (Delims delims, StringBuilder into) {
@@ -1474,6 +2008,11 @@ public class Mustache {
             }
             return new SectionSegment(this, segs);
         }
+        @Override protected SectionSegment optimize (Compiler compiler) {
+            SectionSegment copy = new SectionSegment(this, optimizeSegs(_segs, compiler));
+            copy._resolver = Template.resolver(_name, compiler);
+            return copy;
+        }
         @Override public SectionSegment replaceBlocks(Map<String, BlockSegment> blocks) {
             Template.Segment[] segs = replaceBlockSegs(_segs, blocks);
             if (segs == _segs) {
@@ -1497,6 +2036,9 @@ public class Mustache {
         @Override public void execute (Template tmpl, Template.Context ctx, Writer out) {
             executeSegs(tmpl, ctx, out);
         }
+        @Override void execute (Template tmpl, Template.Context ctx, Template.Interpreter interp) {
+            interp.push(tmpl, _segs, ctx);
+        }
         @Override public void decompile (Delims delims, StringBuilder into) {
             delims.addTag('$', _name, into);
             for (Template.Segment seg : _segs) seg.decompile(delims, into);
@@ -1517,6 +2059,13 @@ public class Mustache {
             }
             return new BlockSegment(this, segs);
         }
+        @Override protected BlockSegment optimize (Compiler compiler) {
+            Template.Segment[] segs = optimizeSegs(_segs, compiler);
+            if (segs == _segs) {
+                return this;
+            }
+            return new BlockSegment(this, segs);
+        }
         @Override public BlockSegment replaceBlocks (Map<String, BlockSegment> blocks) {
             BlockSegment bs = blocks.get(_name);
             if (bs == null) {
@@ -1544,25 +2093,47 @@ public class Mustache {
             _comp = original._comp;
         }
         @Override public void execute (Template tmpl, Template.Context ctx, Writer out) {
-            Object value = tmpl.getSectionValue(ctx, _name, _line); // won't return null
-            Iterator<?> iter = _comp.collector.toIterator(value);
-            if (iter != null) {
-                if (!iter.hasNext()) {
-                    executeSegs(tmpl, ctx, out);
-                }
-            } else if (value instanceof Boolean) {
-                if (!(Boolean)value) {
-                    executeSegs(tmpl, ctx, out);
-                }
-            } else if (value instanceof InvertibleLambda) {
-                try {
-                    ((InvertibleLambda)value).executeInverse(tmpl.createFragment(_segs, ctx), out);
-                } catch (IOException ioe) {
-                    throw new MustacheException(ioe);
-                }
-            } else if (_comp.isFalsey(value)) {
+            if (isInverted(tmpl, ctx, out)) {
                 executeSegs(tmpl, ctx, out);
-            } // TODO: fail?
+            }
+        }
+        @Override void execute (Template tmpl, Template.Context ctx, Template.Interpreter interp) {
+            if (isInverted(tmpl, ctx, interp.out)) {
+                interp.push(tmpl, _segs, ctx);
+            }
+        }
+        /** Returns true if this section's contents should be executed, because its value is
+          * empty, false or falsey. If the value is an invertible lambda, it is executed (to
+          * {@code out}) and false is returned. */
+        protected boolean isInverted (Template tmpl, Template.Context ctx, Writer out) {
+            Object value = getSectionValue(tmpl, ctx); // won't return null
+            Iterator<?> iter = null;
+            int kind = knownKind(value);
+            if (kind == UNKNOWN || (kind == ITERABLE && !isCollection(value))) {
+                iter = _comp.collector.toIterator(value);
+                kind = observeKind(value, iter);
+                if (kind == ITERABLE && isCollection(value)) iter = null;
+            }
+            switch (kind) {
+            case ITERABLE:
+                return (iter == null) ? ((Collection<?>)value).isEmpty() : !iter.hasNext();
+            case BOOLEAN:
+                return !(Boolean)value;
+            case LAMBDA:
+                if (value instanceof InvertibleLambda) {
+                    try {
+                        ((InvertibleLambda)value).executeInverse(
+                            tmpl.createFragment(_segs, ctx), out);
+                    } catch (IOException ioe) {
+                        throw new MustacheException(ioe);
+                    }
+                    return false;
+                }
+                // a non-invertible lambda is treated like any other value
+                return _comp.isFalsey(value);
+            default:
+                return _comp.isFalsey(value); // TODO: fail?
+            }
         }
         @Override public void decompile (Delims delims, StringBuilder into) {
             delims.addTag('^', _name, into);
@@ -1583,6 +2154,11 @@ public class Mustache {
             }
             return new InvertedSegment(this, segs);
         }
+        @Override protected InvertedSegment optimize (Compiler compiler) {
+            InvertedSegment copy = new InvertedSegment(this, optimizeSegs(_segs, compiler));
+            copy._resolver = Template.resolver(_name, compiler);
+            return copy;
+        }
         @Override public InvertedSegment replaceBlocks (Map<String, BlockSegment> blocks) {
             Template.Segment[] segs = replaceBlockSegs(_segs, blocks);
             if (segs == _segs) {
@@ -1605,6 +2181,27 @@ public class Mustache {
         @Override public String toString () { return "Faux"; }
     }
 
+    /** A comment which flushes the writer when executed. See {@link Compiler#flushComment}. Like
+      * any other comment, it is removed (along with its line) when it stands alone. */
+    protected static class FlushSegment extends FauxSegment {
+        public FlushSegment (String comment) {
+            _comment = comment;
+        }
+        @Override public void execute (Template tmpl, Template.Context ctx, Writer out) {
+            try {
+                out.flush();
+            } catch (IOException ioe) {
+                throw new MustacheException(ioe);
+            }
+        }
+        @Override public void decompile (Delims delims, StringBuilder into) {
+            delims.addTag('!', _comment, into);
+        }
+        @Override FlushSegment indent (String indent, boolean first, boolean last) { return this; }
+        @Override public String toString () { return "Flush"; }
+        protected final String _comment;
+    }
+
     /** Used when we have only a single character delimiter. */
     protected static final char NO_CHAR = Character.MIN_VALUE;
 
@@ -1619,4 +2216,8 @@ public class Mustache {
             return String.valueOf(value);
         }
     };
+
+    /** The characters that may appear in integers and doubles formatted by {@link
+      * #DEFAULT_FORMATTER}. An escaper that replaces none of these need not see numbers. */
+    protected static final String NUMBER_CHARS = "0123456789-.EInfityNa";
 }
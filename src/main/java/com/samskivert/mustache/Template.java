@@ -5,11 +5,39 @@
 package com.samskivert.mustache;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import com.samskivert.mustache.Mustache.BlockSegment;
 
@@ -61,7 +89,7 @@ public class Template {
 
         /** Executes this fragment and returns its result as a string. */
         public String execute () {
-            StringWriter out = new StringWriter();
+            BuilderWriter out = new BuilderWriter(new StringBuilder());
             execute(out);
             return out.toString();
         }
@@ -69,11 +97,29 @@ public class Template {
         /** Executes this fragment with the provided context; returns its result as a string. The
           * provided context will be nested in the fragment's bound context. */
         public String execute (Object context) {
-            StringWriter out = new StringWriter();
+            BuilderWriter out = new BuilderWriter(new StringBuilder());
             execute(context, out);
             return out.toString();
         }
 
+        /** Executes this fragment and returns its result as a {@link Rope}, which references
+          * (rather than copies) the fragment's text and any ropes that it writes. A lambda that
+          * writes the rope to its writer (via {@link Rope#appendTo}) thus avoids copying the
+          * fragment's output into a string and then copying it again into its writer. */
+        public Rope executeRope () {
+            RopeWriter out = new RopeWriter();
+            execute(out);
+            return out.toRope();
+        }
+
+        /** Executes this fragment with the provided context; returns its result as a {@link
+          * Rope}. See {@link #executeRope()}. */
+        public Rope executeRope (Object context) {
+            RopeWriter out = new RopeWriter();
+            execute(context, out);
+            return out.toRope();
+        }
+
         /** Returns the context object in effect for this fragment. The actual type of the object
           * depends on the structure of the data passed to the top-level template. You know where
           * your lambdas are executed, so you know what type to which to cast the context in order
@@ -126,11 +172,37 @@ public class Template {
      * @throws MustacheException if an error occurs while executing or writing the template.
      */
     public String execute (Object context) throws MustacheException {
-        StringWriter out = new StringWriter();
+        // presize our buffer based on the size of our previous output to avoid repeated growth
+        StringBuilder out = new StringBuilder(_outputSize);
         execute(context, out);
         return out.toString();
     }
 
+    /**
+     * Executes this template with the given context, returning the results as a {@link Rope}. The
+     * rope references the template's text (and any large variable values) rather than copying
+     * them, which is useful when the results are to be embedded into the output of another
+     * template, which will reference the rope in turn if it is also executed as a rope.
+     * @throws MustacheException if an error occurs while executing the template.
+     */
+    public Rope executeRope (Object context) throws MustacheException {
+        RopeWriter out = new RopeWriter();
+        executeSegs(new Context(context, null, 0, false, false), out);
+        return out.toRope();
+    }
+
+    /**
+     * Executes this template with the given context, appending the results to the supplied
+     * builder. This avoids the synchronization (and exception wrapping) of a {@link Writer}.
+     * @throws MustacheException if an error occurs while executing the template.
+     */
+    public void execute (Object context, StringBuilder out) throws MustacheException {
+        int start = out.length();
+        out.ensureCapacity(start + _outputSize);
+        executeSegs(new Context(context, null, 0, false, false), new BuilderWriter(out));
+        noteOutputSize(out.length() - start);
+    }
+
     /**
      * Executes this template with the given context, writing the results to the supplied writer.
      * @throws MustacheException if an error occurs while executing or writing the template.
@@ -139,6 +211,193 @@ public class Template {
         executeSegs(new Context(context, null, 0, false, false), out);
     }
 
+    /**
+     * Executes this template with the given context, writing the results to the supplied stream
+     * encoded as UTF-8. Static text is encoded once and thereafter written as-is, and variables
+     * are escaped and encoded in a single pass. The stream is not flushed or closed.
+     * @throws MustacheException if an error occurs while executing or writing the template.
+     */
+    public void execute (Object context, OutputStream out) throws MustacheException {
+        Utf8Writer writer = new Utf8Writer(out);
+        executeSegs(new Context(context, null, 0, false, false), writer);
+        try {
+            writer.finish();
+        } catch (IOException ioe) {
+            throw new MustacheException(ioe);
+        }
+    }
+
+    /**
+     * Executes this template with the given context, writing the results to the supplied stream
+     * encoded as UTF-8 (see {@link #execute(Object,OutputStream)}), and returns a digest of the
+     * encoded output. The digest is updated as the output is written, so the output need not be
+     * buffered in order to be hashed, and depends only on the output (not on the platform's
+     * default character encoding), so it is suitable for use as an HTTP {@code ETag}.
+     * @param out the stream to which to write the output, or null to compute only the digest.
+     * @param digest the digest to update with the output (for example {@code
+     * MessageDigest.getInstance("SHA-256")}). It is completed (and thus reset) before returning.
+     * @throws MustacheException if an error occurs while executing or writing the template.
+     */
+    public byte[] execute (Object context, OutputStream out, MessageDigest digest)
+        throws MustacheException {
+        if (out == null) out = OutputStream.nullOutputStream();
+        execute(context, new DigestOutputStream(out, digest));
+        return digest.digest();
+    }
+
+    /**
+     * Executes this template with the given context, writing the results to the supplied stream
+     * encoded as UTF-8 and gzip compressed. The compression (and the writing of compressed data to
+     * {@code out}) is done by a task run on {@code executor}, while this thread renders, so that
+     * rendering and compression proceed in parallel. The two are connected by a small, fixed
+     * number of buffers (see {@link Pipeline}), so rendering pauses if compression falls behind.
+     * This method returns once all output has been compressed and written to {@code out}, which is
+     * not flushed or closed. Flush points (see {@link Mustache.Compiler#flushComment}) are passed
+     * along to the compression task, which flushes everything compressed thus far to {@code out}.
+     * @param executor the executor on which to run the compression task. The task blocks while
+     * waiting for output, so this should not be a pool intended only for short, non-blocking
+     * tasks, like {@link ForkJoinPool#commonPool}. If the executor rejects the task, its exception
+     * is rethrown; if it does not start the task within {@link Pipeline#START_MILLIS}, rendering
+     * fails with a {@link MustacheException}.
+     * @throws MustacheException if an error occurs while executing the template, or while
+     * compressing or writing its output.
+     */
+    public void executeGzip (Object context, OutputStream out, Executor executor)
+        throws MustacheException {
+        final GZIPOutputStream gzip;
+        try {
+            // sync flushing allows flush points to push out all of the output before them
+            gzip = new GZIPOutputStream(out, Pipeline.CHUNK_SIZE, true);
+        } catch (IOException ioe) {
+            throw new MustacheException(ioe);
+        }
+        Pipeline pipe = new Pipeline() {
+            @Override protected void consume (byte[] bytes, int length) throws IOException {
+                gzip.write(bytes, 0, length);
+            }
+            @Override protected void complete () throws IOException {
+                gzip.finish();
+            }
+            @Override protected void flushStage () throws IOException {
+                gzip.flush();
+            }
+        };
+        pipe.start(executor);
+        boolean rendered = false;
+        try {
+            execute(context, pipe);
+            rendered = true;
+        } finally {
+            // stop the stage however rendering failed, lest it wait for output forever
+            if (!rendered) pipe.abort();
+        }
+        try {
+            pipe.finish();
+        } catch (IOException ioe) {
+            throw new MustacheException(ioe);
+        }
+    }
+
+    /**
+     * Executes this template with the given context, writing the results to {@code file} encoded
+     * as UTF-8. The output is written into memory mapped regions of a temporary file (in the same
+     * directory as {@code file}), which is forced to disk, truncated to the size of the output,
+     * and then atomically renamed to {@code file}, replacing any existing file. Thus {@code file}
+     * only ever contains complete output. If execution fails, the temporary file is deleted and
+     * {@code file} is left untouched.
+     *
+     * <p>Some platforms (notably Windows) do not allow a file to be truncated, renamed or deleted
+     * while regions of it are mapped, and mapped regions are only released when they are garbage
+     * collected. If the temporary file cannot be truncated or renamed, the output is copied (via
+     * its channel) into a second temporary file, which is renamed in its place. If the first
+     * temporary file then cannot be deleted, it is deleted when the VM exits.</p>
+     * @throws MustacheException if an error occurs while executing or writing the template.
+     */
+    public void execute (Object context, Path file) throws MustacheException {
+        Path temp = tempSibling(file), copy = null;
+        try {
+            long size;
+            try (FileChannel chan = FileChannel.open(
+                     temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE)) {
+                MappedOutputStream out = new MappedOutputStream(
+                    chan, MappedOutputStream.REGION_SIZE);
+                execute(context, out);
+                size = out.size();
+                try {
+                    out.finish();
+                } catch (IOException ioe) {
+                    // we can't truncate a file while it is mapped; copy its output instead
+                    copy = tempSibling(file);
+                    copyOutput(chan, size, copy);
+                }
+            }
+            try {
+                Files.move(copy == null ? temp : copy, file, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ioe) {
+                if (copy != null) throw ioe;
+                // nor can we rename a file while it is mapped; copy its output instead
+                copy = tempSibling(file);
+                try (FileChannel chan = FileChannel.open(temp, StandardOpenOption.READ)) {
+                    copyOutput(chan, size, copy);
+                }
+                Files.move(copy, file, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ioe) {
+            throw new MustacheException(ioe);
+        } finally {
+            deleteTemp(temp);
+            if (copy != null) deleteTemp(copy);
+        }
+    }
+
+    /** Returns a (randomly named) temporary file in the same directory as {@code file}. */
+    protected static Path tempSibling (Path file) {
+        return file.resolveSibling(file.getFileName() + "." +
+                                   Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+                                   ".tmp");
+    }
+
+    /** Copies the first {@code size} bytes of {@code chan} into a new file, {@code copy}, via
+      * channel writes, and forces them to disk. */
+    protected static void copyOutput (FileChannel chan, long size, Path copy) throws IOException {
+        try (FileChannel out = FileChannel.open(
+                 copy, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long pos = 0; pos < size; ) pos += chan.transferTo(pos, size - pos, out);
+            out.force(true);
+        }
+    }
+
+    /** Deletes {@code temp} if it exists, or arranges for it to be deleted when the VM exits if
+      * it can't be deleted now (because it is still mapped, say). */
+    protected static void deleteTemp (Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException ioe) {
+            temp.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * Executes this template with the given context, writing the results to the supplied channel
+     * encoded as UTF-8. Large runs of static text are not copied, but are instead passed to the
+     * channel directly (via read-only buffers shared by all executions) along with the encoded
+     * variables in a single gathering write. The channel should be in blocking mode, and is not
+     * closed.
+     * @throws MustacheException if an error occurs while executing or writing the template.
+     */
+    public void execute (Object context, GatheringByteChannel out) throws MustacheException {
+        ChannelWriter writer = new ChannelWriter(out);
+        executeSegs(new Context(context, null, 0, false, false), writer);
+        try {
+            writer.finish();
+        } catch (IOException ioe) {
+            throw new MustacheException(ioe);
+        }
+    }
+
     /**
      * Executes this template with the supplied context and parent context, writing the results to
      * the supplied writer. The parent context will be searched for variables that cannot be found
@@ -151,6 +410,76 @@ public class Template {
         executeSegs(new Context(context, pctx, 0, false, false), out);
     }
 
+    /**
+     * Returns a reader from which the output of this template (executed with the given context)
+     * can be read. The template is executed lazily, a piece at a time, as the output is read, so
+     * only as much output is held in memory as is needed to satisfy each read (plus whatever a
+     * single variable or lambda happens to produce). Errors that occur while executing the
+     * template are thrown (as {@link MustacheException}s) by the reader's {@code read} methods.
+     */
+    public Reader openReader (Object context) {
+        return new RenderReader(this, new Context(context, null, 0, false, false));
+    }
+
+    /**
+     * Returns a stream from which the output of this template (executed with the given context)
+     * can be read, encoded as UTF-8. Like {@link #openReader}, the template is executed lazily as
+     * the output is read.
+     */
+    public InputStream openStream (Object context) {
+        return new RenderStream(this, new Context(context, null, 0, false, false));
+    }
+
+    /**
+     * Returns a publisher of the output of this template (executed with the given context) in
+     * chunks of at most {@link RenderSubscription#CHUNK_SIZE} characters. Each subscriber gets
+     * its own execution, which proceeds only as the subscriber requests chunks: rendering is done
+     * on the thread that calls {@link Flow.Subscription#request}, and stops (without blocking
+     * any thread) when the requested chunks have been delivered. Errors that occur while
+     * executing the template are delivered via {@link Flow.Subscriber#onError}.
+     */
+    public Flow.Publisher<CharSequence> publish (final Object context) {
+        return new Flow.Publisher<CharSequence>() {
+            public void subscribe (Flow.Subscriber<? super CharSequence> sub) {
+                final Reader reader = openReader(context);
+                sub.onSubscribe(new RenderSubscription<CharSequence>(sub) {
+                    private final char[] _cbuf = new char[CHUNK_SIZE];
+                    @Override protected CharSequence next () throws IOException {
+                        int read = reader.read(_cbuf, 0, _cbuf.length);
+                        return (read == -1) ? null : new String(_cbuf, 0, read);
+                    }
+                    @Override protected void release () throws IOException {
+                        reader.close();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Returns a publisher of the output of this template (executed with the given context),
+     * encoded as UTF-8, in buffers of at most {@link RenderSubscription#CHUNK_SIZE} bytes. See
+     * {@link #publish}.
+     */
+    public Flow.Publisher<ByteBuffer> publishBytes (final Object context) {
+        return new Flow.Publisher<ByteBuffer>() {
+            public void subscribe (Flow.Subscriber<? super ByteBuffer> sub) {
+                final InputStream in = openStream(context);
+                sub.onSubscribe(new RenderSubscription<ByteBuffer>(sub) {
+                    @Override protected ByteBuffer next () throws IOException {
+                        // each buffer is handed off to the subscriber, so we can't reuse them
+                        byte[] bytes = new byte[CHUNK_SIZE];
+                        int read = in.read(bytes, 0, bytes.length);
+                        return (read == -1) ? null : ByteBuffer.wrap(bytes, 0, read);
+                    }
+                    @Override protected void release () throws IOException {
+                        in.close();
+                    }
+                });
+            }
+        };
+    }
+
     /**
      * Visits the tags in this template (via {@code visitor}) without executing it.
      * @param visitor the visitor to be called back on each tag in the template.
@@ -165,6 +494,7 @@ public class Template {
         _segs = segs;
         _compiler = compiler;
         _fcache = compiler.collector.createFetcherCache();
+        _exec = compiler.optimize ? Mustache.optimizeSegs(segs, compiler) : segs;
     }
 
     protected Template indent (String indent) {
@@ -192,12 +522,58 @@ public class Template {
     }
 
     protected void executeSegs (Context ctx, Writer out) throws MustacheException {
-        for (Segment seg : _segs) {
-            seg.execute(this, ctx, out);
+        if (_compiler.explicitStack) {
+            Interpreter interp = new Interpreter(out);
+            interp.push(this, executable(), ctx);
+            interp.run();
+        } else {
+            for (Segment seg : executable()) {
+                seg.execute(this, ctx, out);
+            }
+        }
+    }
+
+    /**
+     * Returns the segments to be executed. Each call counts as an execution of this template, and
+     * once a template has been executed {@link Mustache.Compiler#optimizeAfter} times, an
+     * optimized copy of its segments is created in the background and then swapped in for use by
+     * subsequent executions.
+     */
+    protected Segment[] executable () {
+        Segment[] exec = _exec;
+        int threshold = _compiler.optimizeAfter;
+        if (exec == _segs && threshold > 0) {
+            // we don't care if racing threads lose a few counts, we only need to reach the
+            // threshold eventually (and scheduling the optimization twice is merely wasteful)
+            int count = _executions;
+            if (count < threshold) {
+                _executions = ++count;
+                if (count == threshold) optimizeLater();
+            }
         }
+        return exec;
+    }
+
+    /** Notes that this template just generated {@code size} characters of output, which will be
+      * used to size the buffer for its next execution. */
+    protected void noteOutputSize (int size) {
+        // grow eagerly (with a little room to spare), but shrink only if we're way oversized; we
+        // don't care if racing threads clobber one another's updates
+        int hint = _outputSize;
+        if (size > hint || size < hint/4) _outputSize = Math.max(size + (size >> 3), 16);
+    }
+
+    protected void optimizeLater () {
+        ForkJoinPool.commonPool().execute(new Runnable() {
+            public void run () {
+                _exec = Mustache.optimizeSegs(_segs, _compiler);
+            }
+        });
     }
 
-    protected Fragment createFragment (final Segment[] segs, final Context currentCtx) {
+    protected Fragment createFragment (final Segment[] segs, Context ctx) {
+        // the fragment may outlive the (reused) context frames in which it was created
+        final Context currentCtx = ctx.snapshot();
         return new Fragment() {
             @Override public void execute (Writer out) {
                 execute(currentCtx, out);
@@ -209,7 +585,7 @@ public class Template {
                 tmpl.executeSegs(currentCtx, out);
             }
             @Override public Object context () {
-                return currentCtx.data;
+                return currentCtx.data();
             }
             @Override public Object context (int n) {
                 return context(currentCtx, n);
@@ -219,11 +595,17 @@ public class Template {
                 return into;
             }
             private Object context (Context ctx, int n) {
-                return (n == 0) ? ctx.data : context(ctx.parent, n-1);
+                return (n == 0) ? ctx.data() : context(ctx.parent, n-1);
             }
             private void execute (Context ctx, Writer out) {
-                for (Segment seg : segs) {
-                    seg.execute(Template.this, ctx, out);
+                if (_compiler.explicitStack) {
+                    Interpreter interp = new Interpreter(out);
+                    interp.push(Template.this, segs, ctx);
+                    interp.run();
+                } else {
+                    for (Segment seg : segs) {
+                        seg.execute(Template.this, ctx, out);
+                    }
                 }
             }
         };
@@ -241,32 +623,37 @@ public class Template {
      * @return the value associated with the supplied name or null if no value could be resolved.
      */
     protected Object getValue (Context ctx, String name, int line, boolean missingIsNull) {
-        // handle our special variables
-        if (name.equals(FIRST_NAME)) {
-            return ctx.onFirst;
-        } else if (name.equals(LAST_NAME)) {
-            return ctx.onLast;
-        } else if (name.equals(INDEX_NAME)) {
-            return ctx.index;
+        // handle our special variables (which all start with '-', so check that first)
+        if (name.length() > 0 && name.charAt(0) == '-') {
+            if (name.equals(FIRST_NAME)) {
+                return ctx.onFirst;
+            } else if (name.equals(LAST_NAME)) {
+                return ctx.onLast();
+            } else if (name.equals(INDEX_NAME)) {
+                return ctx.index;
+            }
         }
 
         // if we're in standards mode, restrict ourselves to simple direct resolution (no compound
         // keys, no resolving values in parent contexts)
         if (_compiler.standardsMode) {
-            Object value = getValueIn(ctx.data, name, line);
+            Object value = getValueIn(ctx.data(), name, line);
             return checkForMissing(name, line, missingIsNull, value);
         }
 
-        // first search our parent contexts for the key (even if the key is a compound key, we will
-        // first try to find it "whole" and only if that fails do we resolve it in parts)
-        for (Context pctx = ctx; pctx != null; pctx = pctx.parent) {
-            Object value = getValueIn(pctx.data, name, line);
-            if (value != NO_FETCHER_FOUND) return value;
+        // first search our parent contexts for the key (if the key is a compound key, we only do
+        // this if we've been asked to try to find it "whole" before resolving it in parts)
+        boolean compound = !name.equals(DOT_NAME) && name.indexOf(DOT_NAME) != -1;
+        if (!compound || _compiler.wholeCompoundNames) {
+            for (Context pctx = ctx; pctx != null; pctx = pctx.parent) {
+                Object value = getValueIn(pctx.data(), name, line);
+                if (value != NO_FETCHER_FOUND) return value;
+            }
         }
         // if we reach here, we found nothing in this or our parent contexts...
 
         // if we have a compound key, decompose the value and resolve it step by step
-        if (!name.equals(DOT_NAME) && name.indexOf(DOT_NAME) != -1) {
+        if (compound) {
             return getCompoundValue(ctx, name, line, missingIsNull);
         } else {
             // otherwise let checkForMissing() decide what to do
@@ -375,107 +762,1594 @@ public class Template {
     }
 
     protected final Segment[] _segs;
+    /** The segments actually executed: either {@link #_segs} or an optimized copy thereof. */
+    protected volatile Segment[] _exec;
     protected final Mustache.Compiler _compiler;
     protected final Map<Key, Mustache.VariableFetcher> _fcache;
+    /** The (approximate) number of times this template has been executed, see {@link
+      * #executable}. */
+    protected int _executions;
+    /** The number of characters to reserve for this template's output, see {@link
+      * #noteOutputSize}. */
+    protected int _outputSize = 16;
 
-    protected static class Context {
-        public final Object data;
-        public final Context parent;
-        public final int index;
-        public final boolean onFirst;
-        public final boolean onLast;
+    /**
+     * A {@link Writer} which appends to a {@link StringBuilder}. Unlike {@link
+     * java.io.StringWriter}, it does no synchronization.
+     */
+    protected static final class BuilderWriter extends Writer {
+        public final StringBuilder buffer;
 
-        public Context (Object data, Context parent, int index, boolean onFirst, boolean onLast) {
-            this.data = data;
-            this.parent = parent;
-            this.index = index;
-            this.onFirst = onFirst;
-            this.onLast = onLast;
+        public BuilderWriter (StringBuilder buffer) {
+            this.buffer = buffer;
         }
 
-        public Context nest (Object data) {
-            return new Context(data, this, index, onFirst, onLast);
+        @Override public void write (int c) {
+            buffer.append((char)c);
         }
-
-        public Context nest (Object data, int index, boolean onFirst, boolean onLast) {
-            return new Context(data, this, index, onFirst, onLast);
+        @Override public void write (char[] cbuf, int off, int len) {
+            buffer.append(cbuf, off, len);
+        }
+        @Override public void write (String str) {
+            buffer.append(str);
+        }
+        @Override public void write (String str, int off, int len) {
+            buffer.append(str, off, off + len);
+        }
+        @Override public Writer append (CharSequence csq) {
+            if (csq instanceof Rope) ((Rope)csq).appendTo(buffer);
+            else buffer.append(csq);
+            return this;
+        }
+        @Override public Writer append (CharSequence csq, int start, int end) {
+            buffer.append(csq, start, end);
+            return this;
+        }
+        @Override public Writer append (char c) {
+            buffer.append(c);
+            return this;
+        }
+        @Override public void flush () {} // nada
+        @Override public void close () {} // nada
+        @Override public String toString () {
+            return buffer.toString();
         }
     }
 
-    /** A template is broken into segments. */
-    protected static abstract class Segment {
-        abstract void execute (Template tmpl, Context ctx, Writer out);
-        abstract void decompile (Mustache.Delims delims, StringBuilder into);
-        abstract void visit (Mustache.Visitor visitor);
+    /**
+     * An immutable sequence of characters made up of a list of other (immutable) sequences, which
+     * are referenced rather than copied. See {@link #executeRope}. A rope can be written to a
+     * sink, via {@link #appendTo}, without first being flattened into a string.
+     */
+    public static final class Rope implements CharSequence {
+        /** Appends the characters of this rope to {@code out}, a piece at a time. */
+        public void appendTo (Appendable out) throws IOException {
+            for (CharSequence piece : _pieces) {
+                if (piece instanceof Rope) ((Rope)piece).appendTo(out);
+                else out.append(piece);
+            }
+        }
 
-        /**
-         * Recursively indent by the parameter indent.
-         * @param indent should be space characters that are not {@code \n}.
-         * @param first append indent to the first line (regardless if it has a {@code \n} or not).
-         * @param last append indent on the last {@code \n} that has no text after it.
-         * @return a newly created segment or the same segment if nothing changed.
-         */
-        abstract Segment indent (String indent, boolean first, boolean last);
+        /** Appends the characters of this rope to {@code out}, a piece at a time. */
+        public void appendTo (StringBuilder out) {
+            for (CharSequence piece : _pieces) {
+                if (piece instanceof Rope) ((Rope)piece).appendTo(out);
+                else out.append(piece);
+            }
+        }
 
-        /**
-         * Whether or not the segment is standalone. The definition of standalone is defined by the
-         * mustache spec. String and variable tags are never standalone. For blocks this is based on
-         * the closing tag. Once {@code trim} is called, standalone tags are determined so that
-         * proper (re)indentation will work without reparsing the template.
-         * @return true if the tag is standalone.
-         */
-        abstract boolean isStandalone ();
+        @Override public int length () {
+            return _ends.length == 0 ? 0 : _ends[_ends.length-1];
+        }
 
-        protected static void write (Writer out, CharSequence data) {
-            try {
-                out.append(data);
-            } catch (IOException ioe) {
-                throw new MustacheException(ioe);
+        @Override public char charAt (int index) {
+            if (index < 0 || index >= length()) throw new IndexOutOfBoundsException(
+                "Index " + index + " out of bounds for length " + length());
+            // binary search for the piece that contains index
+            int lo = 0, hi = _ends.length-1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (_ends[mid] <= index) lo = mid+1;
+                else hi = mid;
             }
+            return _pieces[lo].charAt(lo == 0 ? index : index - _ends[lo-1]);
         }
 
-        protected static void escape (Appendable out, CharSequence data, Mustache.Escaper escape) {
-            try {
-                escape.escape(out, data);
-            } catch (IOException ioe) {
-                throw new MustacheException(ioe);
+        @Override public CharSequence subSequence (int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override public String toString () {
+            String flat = _flat;
+            if (flat == null) {
+                StringBuilder out = new StringBuilder(length());
+                appendTo(out);
+                _flat = flat = out.toString();
+            }
+            return flat;
+        }
+
+        protected Rope (CharSequence[] pieces) {
+            _pieces = pieces;
+            _ends = new int[pieces.length];
+            for (int ii = 0, end = 0; ii < pieces.length; ii++) {
+                _ends[ii] = end += pieces[ii].length();
             }
         }
+
+        protected final CharSequence[] _pieces;
+        /** The (exclusive) end index of each piece in this rope. */
+        protected final int[] _ends;
+        protected String _flat; // computed on demand
     }
 
-    /** Used to cache variable fetchers for a given context class, name combination. */
-    protected static class Key {
-        public final Class<?> cclass;
-        public final String name;
+    /**
+     * A {@link Writer} which accumulates a {@link Rope}. Strings and ropes that are at least
+     * {@link #MIN_SHARED} characters long are referenced by the rope; everything else is copied
+     * into a buffer of pending characters, which becomes a piece of the rope whenever something
+     * is referenced.
+     */
+    static final class RopeWriter extends Writer {
+        /** Sequences shorter than this are copied rather than referenced. */
+        public static final int MIN_SHARED = 64;
 
-        public Key (Class<?> cclass, String name) {
-            this.cclass = cclass;
-            this.name = name;
+        public Rope toRope () {
+            endPending();
+            return new Rope(_pieces.toArray(new CharSequence[_pieces.size()]));
         }
 
-        @Override public int hashCode () {
-            return cclass.hashCode() * 31 + name.hashCode();
+        @Override public void write (int c) {
+            _pending.append((char)c);
         }
-
-        @Override public boolean equals (Object other) {
-            Key okey = (Key)other;
-            return okey.cclass == cclass && okey.name.equals(name);
+        @Override public void write (char[] cbuf, int off, int len) {
+            _pending.append(cbuf, off, len);
+        }
+        @Override public void write (String str) {
+            append(str);
+        }
+        @Override public void write (String str, int off, int len) {
+            _pending.append(str, off, off + len);
+        }
+        @Override public Writer append (CharSequence csq) {
+            if (csq == null) csq = "null";
+            if ((csq instanceof String || csq instanceof Rope) && csq.length() >= MIN_SHARED) {
+                endPending();
+                _pieces.add(csq);
+            } else if (csq instanceof Rope) {
+                ((Rope)csq).appendTo(_pending);
+            } else {
+                _pending.append(csq);
+            }
+            return this;
+        }
+        @Override public Writer append (CharSequence csq, int start, int end) {
+            _pending.append(csq, start, end);
+            return this;
         }
+        @Override public Writer append (char c) {
+            _pending.append(c);
+            return this;
+        }
+        @Override public void flush () {} // nada
+        @Override public void close () {} // nada
 
-        @Override public String toString () {
-            return cclass.getName() + ":" + name;
+        protected void endPending () {
+            if (_pending.length() > 0) {
+                _pieces.add(_pending.toString());
+                _pending.setLength(0);
+            }
         }
+
+        protected final List<CharSequence> _pieces = new ArrayList<>();
+        protected final StringBuilder _pending = new StringBuilder();
     }
 
-    protected static boolean isThisName (String name) {
-        return DOT_NAME.equals(name) || THIS_NAME.equals(name);
+    /**
+     * A {@link Writer} which encodes to UTF-8 into an internal buffer, which is drained to an
+     * {@link OutputStream} as it fills. Segments that have their output pre-encoded may bypass
+     * character encoding entirely via {@link #writeUtf8}. Unpaired surrogates are encoded as
+     * {@code ?}, as {@link String#getBytes} would encode them.
+     */
+    protected static class Utf8Writer extends Writer {
+        public Utf8Writer (OutputStream out) {
+            _out = out;
+        }
+
+        /** Writes already UTF-8 encoded {@code bytes}. */
+        public void writeUtf8 (byte[] bytes) throws IOException {
+            finishSurrogate(); // these bytes can't complete a surrogate pair
+            if (bytes.length > _buf.length - _pos) {
+                drain();
+                if (bytes.length > _buf.length) {
+                    _out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, _buf, _pos, bytes.length);
+            _pos += bytes.length;
+        }
+
+        /** Writes {@code text}, replacing any 7 bit characters which have an entry in {@code
+          * table} with that (already UTF-8 encoded) entry. */
+        public void escape (CharSequence text, byte[][] table) throws IOException {
+            for (int ii = 0, ll = text.length(); ii < ll; ii++) {
+                char c = text.charAt(ii);
+                byte[] repl = (c < table.length) ? table[c] : null;
+                if (repl != null) writeUtf8(repl);
+                else if (c < 0x80 && _high == 0 && _pos < _buf.length) _buf[_pos++] = (byte)c;
+                else encode(c);
+            }
+        }
+
+        /** Writes any buffered output (and any dangling surrogate) to the underlying stream,
+          * without flushing it. */
+        public void finish () throws IOException {
+            finishSurrogate();
+            drain();
+        }
+
+        @Override public void write (int c) throws IOException {
+            encode((char)c);
+        }
+        @Override public void write (char[] cbuf, int off, int len) throws IOException {
+            for (int ii = off, end = off + len; ii < end; ii++) {
+                char c = cbuf[ii];
+                if (c < 0x80 && _high == 0 && _pos < _buf.length) _buf[_pos++] = (byte)c;
+                else encode(c);
+            }
+        }
+        @Override public void write (String str, int off, int len) throws IOException {
+            encode(str, off, off + len);
+        }
+        @Override public Writer append (CharSequence csq) throws IOException {
+            if (csq == null) csq = "null";
+            if (csq instanceof Rope) ((Rope)csq).appendTo(this);
+            else encode(csq, 0, csq.length());
+            return this;
+        }
+        @Override public Writer append (CharSequence csq, int start, int end) throws IOException {
+            if (csq == null) csq = "null";
+            encode(csq, start, end);
+            return this;
+        }
+        @Override public Writer append (char c) throws IOException {
+            encode(c);
+            return this;
+        }
+        @Override public void flush () throws IOException {
+            drain();
+            _out.flush();
+        }
+        @Override public void close () throws IOException {
+            finish();
+            _out.close();
+        }
+
+        protected void encode (CharSequence text, int start, int end) throws IOException {
+            for (int ii = start; ii < end; ii++) {
+                char c = text.charAt(ii);
+                if (c < 0x80 && _high == 0 && _pos < _buf.length) _buf[_pos++] = (byte)c;
+                else encode(c);
+            }
+        }
+
+        protected void encode (char c) throws IOException {
+            if (_buf.length - _pos < 5) drain();
+            if (_high != 0) {
+                char high = _high;
+                _high = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint(high, c);
+                    _buf[_pos++] = (byte)(0xF0 | (cp >> 18));
+                    _buf[_pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                    _buf[_pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                    _buf[_pos++] = (byte)(0x80 | (cp & 0x3F));
+                    return;
+                }
+                _buf[_pos++] = '?';
+            }
+            if (c < 0x80) {
+                _buf[_pos++] = (byte)c;
+            } else if (c < 0x800) {
+                _buf[_pos++] = (byte)(0xC0 | (c >> 6));
+                _buf[_pos++] = (byte)(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                _high = c;
+            } else if (Character.isLowSurrogate(c)) {
+                _buf[_pos++] = '?';
+            } else {
+                _buf[_pos++] = (byte)(0xE0 | (c >> 12));
+                _buf[_pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                _buf[_pos++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+
+        protected void finishSurrogate () throws IOException {
+            if (_high != 0) {
+                _high = 0;
+                encode('?');
+            }
+        }
+
+        protected void drain () throws IOException {
+            if (_pos > 0) {
+                _out.write(_buf, 0, _pos);
+                _pos = 0;
+            }
+        }
+
+        protected final OutputStream _out;
+        protected final byte[] _buf = new byte[8192];
+        protected int _pos;
+        /** A high surrogate awaiting its low surrogate, or 0. */
+        protected char _high;
     }
 
-    protected static final String DOT_NAME = ".";
-    protected static final String THIS_NAME = "this";
-    protected static final String FIRST_NAME = "-first";
-    protected static final String LAST_NAME = "-last";
-    protected static final String INDEX_NAME = "-index";
+    /**
+     * A {@link Utf8Writer} which writes to a {@link GatheringByteChannel}. Encoded output
+     * accumulates as a list of buffers: views of the (reused) scratch buffer interleaved with
+     * large pre-encoded byte sequences, which are referenced rather than copied. The whole list
+     * is written with a single gathering write when the scratch buffer fills or on {@link
+     * #finish}.
+     */
+    protected static final class ChannelWriter extends Utf8Writer {
+        /** Pre-encoded sequences smaller than this are just copied into the scratch buffer. */
+        public static final int MIN_SHARED = 128;
+
+        public ChannelWriter (GatheringByteChannel out) {
+            super(null);
+            _chan = out;
+        }
+
+        /** Writes {@code bytes}, which must not change until this writer is next drained. */
+        @Override public void writeUtf8 (byte[] bytes) throws IOException {
+            if (bytes.length < MIN_SHARED) super.writeUtf8(bytes);
+            else gather(ByteBuffer.wrap(bytes));
+        }
+
+        /** Writes the already UTF-8 encoded {@code bytes}. {@code shared} is a read-only view of
+          * the same bytes, which is duplicated and sent to the channel rather than copying
+          * {@code bytes} if they are large enough to be worth it. */
+        public void writeShared (byte[] bytes, ByteBuffer shared) throws IOException {
+            if (bytes.length < MIN_SHARED) super.writeUtf8(bytes);
+            else gather(shared.duplicate());
+        }
+
+        @Override public void flush () throws IOException {
+            drain();
+        }
+        @Override public void close () throws IOException {
+            finish();
+            _chan.close();
+        }
+
+        @Override protected void drain () throws IOException {
+            markScratch();
+            long remain = 0;
+            for (int ii = 0; ii < _count; ii++) remain += _bufs[ii].remaining();
+            // a channel may write only some of our buffers, so keep going until they're all done
+            for (int first = 0; remain > 0; ) {
+                remain -= _chan.write(_bufs, first, _count - first);
+                while (first < _count && !_bufs[first].hasRemaining()) first++;
+            }
+            Arrays.fill(_bufs, 0, _count, null);
+            _count = 0;
+            _pos = _mark = 0;
+        }
+
+        protected void gather (ByteBuffer buf) throws IOException {
+            finishSurrogate();
+            // leave room for this buffer, the scratch before it and the scratch after it
+            if (_count > _bufs.length - 3) drain();
+            markScratch();
+            _bufs[_count++] = buf;
+        }
+
+        protected void markScratch () {
+            if (_pos > _mark) {
+                _bufs[_count++] = ByteBuffer.wrap(_buf, _mark, _pos - _mark);
+                _mark = _pos;
+            }
+        }
+
+        protected final GatheringByteChannel _chan;
+        protected final ByteBuffer[] _bufs = new ByteBuffer[64];
+        protected int _count;
+        /** The start of the scratch buffer's bytes that are not yet in {@link #_bufs}. */
+        protected int _mark;
+    }
+
+    /**
+     * Executes a template (via an {@link Interpreter}) just far enough to satisfy each read.
+     */
+    protected static final class RenderReader extends Reader {
+        public RenderReader (Template tmpl, Context ctx) {
+            _interp = new Interpreter(new BuilderWriter(_chunk));
+            _interp.push(tmpl, tmpl.executable(), ctx);
+        }
+
+        @Override public int read () {
+            // read straight from our buffer, unless more must be rendered into it
+            if (_pos < _chunk.length()) return _chunk.charAt(_pos++);
+            return (read(_one, 0, 1) == -1) ? -1 : _one[0];
+        }
+
+        @Override public int read (char[] cbuf, int off, int len) {
+            if (len == 0) return 0;
+            // drop what has been read before rendering more, so the chunk stays bounded by the
+            // read size plus the output of a single step
+            if (_interp != null && _pos > 0 && _chunk.length() - _pos < len) {
+                _chunk.delete(0, _pos);
+                _pos = 0;
+            }
+            while (_interp != null && _chunk.length() - _pos < len) {
+                if (!_interp.step()) _interp = null;
+            }
+            int count = Math.min(len, _chunk.length() - _pos);
+            if (count == 0) return -1;
+            _chunk.getChars(_pos, _pos + count, cbuf, off);
+            _pos += count;
+            return count;
+        }
+
+        @Override public void close () {
+            _interp = null;
+            _chunk.setLength(0);
+            _pos = 0;
+        }
+
+        protected Interpreter _interp; // null once the template is fully executed
+        protected final StringBuilder _chunk = new StringBuilder();
+        protected final char[] _one = new char[1];
+        protected int _pos;
+    }
+
+    /**
+     * An output stream which hands its output, in chunks, to a stage (see {@link #consume}) run
+     * on another thread. Full chunks are passed to the stage via a bounded queue, and returned to
+     * be refilled once the stage has consumed them, so only {@link #CHUNKS} chunks ever exist.
+     * If the stage fails, writes to this stream fail (as soon as they notice).
+     */
+    protected static abstract class Pipeline extends OutputStream {
+        /** The number of chunks which circulate between the writer and the stage. */
+        public static final int CHUNKS = 4;
+        /** The size of each chunk. */
+        public static final int CHUNK_SIZE = 64 << 10;
+        /** How long the writer waits on the stage before checking that the stage is alive. */
+        public static final long POLL_MILLIS = 100;
+        /** How long the stage may take to start before the writer assumes that the executor has
+          * dropped it, and fails. */
+        public static final long START_MILLIS = 30000;
+
+        public Pipeline () {
+            for (int ii = 0; ii < CHUNKS; ii++) _free.add(new Chunk(CHUNK_SIZE));
+        }
+
+        /** Starts the stage which consumes this stream's output on {@code executor}. */
+        public void start (Executor executor) {
+            _startNanos = System.nanoTime();
+            try {
+                executor.execute(new Runnable() {
+                    public void run () { runStage(); }
+                });
+            } catch (RuntimeException e) {
+                abandon(e);
+                throw e;
+            }
+        }
+
+        /** Passes the final chunk to the stage, and waits for the stage to consume it and
+          * {@link #complete}. Any error which occurred in the stage is rethrown. */
+        public void finish () throws IOException {
+            if (_current != null && _current.length > 0) put(_current);
+            _current = null;
+            put(END);
+            try {
+                while (!_done.await(POLL_MILLIS, TimeUnit.MILLISECONDS)) checkStarted();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            checkError();
+        }
+
+        /** Tells the stage to stop without completing, and waits for it to do so. */
+        public void abort () {
+            boolean interrupted = false;
+            try {
+                put(ABORT);
+                for (;;) {
+                    try {
+                        while (!_done.await(POLL_MILLIS, TimeUnit.MILLISECONDS)) checkStarted();
+                        break;
+                    } catch (InterruptedException ie) {
+                        interrupted = true;
+                    }
+                }
+            } catch (IOException ioe) {
+                // the stage has stopped (or never started), which is all we wanted
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        /** Passes any pending output to the stage, followed by a request that it {@link
+          * #flushStage}. This does not wait for the stage to do so. */
+        @Override public void flush () throws IOException {
+            if (_current != null && _current.length > 0) {
+                put(_current);
+                _current = null;
+            }
+            put(FLUSH);
+        }
+
+        @Override public void write (int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override public void write (byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (_current == null) {
+                    checkError();
+                    try {
+                        // if the stage stops without returning our chunks, don't wait forever
+                        while (_current == null) {
+                            _current = _free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                            if (_current == null) checkStage();
+                        }
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                int count = Math.min(len, _current.bytes.length - _current.length);
+                System.arraycopy(b, off, _current.bytes, _current.length, count);
+                _current.length += count;
+                off += count;
+                len -= count;
+                if (_current.length == _current.bytes.length) {
+                    put(_current);
+                    _current = null;
+                }
+            }
+        }
+
+        /** Consumes {@code length} bytes of output. Called on the stage's thread. */
+        protected abstract void consume (byte[] bytes, int length) throws IOException;
+
+        /** Completes the processing of output once it has all been consumed. Called on the stage's
+          * thread. */
+        protected abstract void complete () throws IOException;
+
+        /** Flushes the output consumed thus far, as requested by {@link #flush}. Called on the
+          * stage's thread. By default, does nothing. */
+        protected void flushStage () throws IOException {}
+
+        protected void runStage () {
+            // if the writer gave up waiting for us to start, it no longer expects any output
+            if (!_claimed.compareAndSet(false, true)) return;
+            try {
+                for (;;) {
+                    Chunk chunk = _full.take();
+                    if (chunk == ABORT) break;
+                    if (chunk == END) {
+                        if (_error == null) complete();
+                        break;
+                    }
+                    if (chunk == FLUSH) {
+                        try {
+                            if (_error == null) flushStage();
+                        } catch (Throwable t) {
+                            _error = t;
+                        }
+                        continue;
+                    }
+                    // if we've failed, keep recycling chunks so that the writer doesn't block
+                    if (_error == null) {
+                        try {
+                            consume(chunk.bytes, chunk.length);
+                        } catch (Throwable t) {
+                            _error = t;
+                        }
+                    }
+                    chunk.length = 0;
+                    _free.add(chunk);
+                }
+            } catch (Throwable t) {
+                _error = t;
+            } finally {
+                _done.countDown();
+            }
+        }
+
+        protected void put (Chunk chunk) throws IOException {
+            try {
+                // flush requests don't circulate, so enough of them could fill the queue
+                while (!_full.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) checkStage();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /** Throws an exception if the stage has failed, stopped, or not started in time. */
+        protected void checkStage () throws IOException {
+            checkStarted();
+            checkError();
+            if (_done.getCount() == 0) throw new IOException("Stage stopped.");
+        }
+
+        /** Gives up on the stage if the executor has not started it within {@link #START_MILLIS}
+          * (as when the executor silently discards it), so that the writer doesn't wait for it
+          * forever. */
+        protected void checkStarted () throws IOException {
+            if (!_claimed.get() && System.nanoTime() - _startNanos >
+                TimeUnit.MILLISECONDS.toNanos(START_MILLIS)) {
+                abandon(new IOException("Stage did not start."));
+                checkError();
+            }
+        }
+
+        /** Ensures that the stage never runs (if it has not yet started), recording {@code error}
+          * as the reason. */
+        protected void abandon (Throwable error) {
+            if (_claimed.compareAndSet(false, true)) {
+                _error = error;
+                _done.countDown();
+            }
+        }
+
+        protected void checkError () throws IOException {
+            Throwable error = _error;
+            if (error instanceof IOException) throw new IOException(error.getMessage(), error);
+            if (error != null) throw new IOException(error);
+        }
+
+        protected static final class Chunk {
+            public final byte[] bytes;
+            public int length;
+            public Chunk (int size) { bytes = new byte[size]; }
+        }
+
+        protected static final Chunk END = new Chunk(0), ABORT = new Chunk(0);
+        protected static final Chunk FLUSH = new Chunk(0);
+
+        protected final BlockingQueue<Chunk> _free = new ArrayBlockingQueue<>(CHUNKS);
+        protected final BlockingQueue<Chunk> _full = new ArrayBlockingQueue<>(CHUNKS+1);
+        protected final CountDownLatch _done = new CountDownLatch(1);
+        /** Claimed by the stage when it starts, or by the writer if it gives up on the stage. */
+        protected final AtomicBoolean _claimed = new AtomicBoolean();
+        protected volatile Throwable _error;
+        protected volatile long _startNanos;
+        protected Chunk _current; // only accessed by the writer
+    }
+
+    /**
+     * An output stream which writes into successive memory mapped regions of a file channel,
+     * growing the file a region at a time. Once all output is written, {@link #finish} must be
+     * called to force the output to disk and truncate the file to the size of the output.
+     */
+    protected static final class MappedOutputStream extends OutputStream {
+        /** The size of the regions mapped by {@link Template#execute(Object,Path)}. */
+        public static final int REGION_SIZE = 64 << 20;
+
+        public MappedOutputStream (FileChannel chan, int regionSize) {
+            _chan = chan;
+            _regionSize = regionSize;
+        }
+
+        /** Returns the number of bytes written thus far. */
+        public long size () {
+            return _base + (_map == null ? 0 : _map.position());
+        }
+
+        /** Forces the output to disk and truncates the file to the size of the output. */
+        public void finish () throws IOException {
+            long size = size();
+            if (_map != null) {
+                _map.force();
+                _map = null;
+            }
+            _chan.truncate(size);
+            _chan.force(true);
+        }
+
+        @Override public void write (int b) throws IOException {
+            if (_map == null || !_map.hasRemaining()) nextRegion();
+            _map.put((byte)b);
+        }
+
+        @Override public void write (byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (_map == null || !_map.hasRemaining()) nextRegion();
+                int count = Math.min(len, _map.remaining());
+                _map.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        protected void nextRegion () throws IOException {
+            if (_map != null) {
+                _map.force();
+                _base += _map.capacity();
+            }
+            // mapping beyond the end of the file grows the file
+            _map = _chan.map(FileChannel.MapMode.READ_WRITE, _base, _regionSize);
+        }
+
+        protected final FileChannel _chan;
+        protected final int _regionSize;
+        protected MappedByteBuffer _map;
+        protected long _base; // the file position of the start of _map
+    }
+
+    /**
+     * Delivers chunks of a template's output to a {@link Flow.Subscriber} as they are requested.
+     * Chunks are produced (by {@link #next}) on whichever thread requests them; if a request
+     * arrives while another thread is delivering chunks, that thread delivers the newly requested
+     * chunks as well, so the subscriber is never called concurrently or reentrantly.
+     */
+    protected static abstract class RenderSubscription<T> implements Flow.Subscription {
+        /** The maximum size of the chunks delivered to subscribers. */
+        public static final int CHUNK_SIZE = 8192;
+
+        protected RenderSubscription (Flow.Subscriber<? super T> sub) {
+            _sub = sub;
+        }
+
+        @Override public void request (long n) {
+            if (n <= 0) {
+                _error = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                long demand, next;
+                do {
+                    demand = _demand.get();
+                    next = demand + n;
+                    if (next < 0) next = Long.MAX_VALUE; // unbounded
+                } while (!_demand.compareAndSet(demand, next));
+            }
+            drain();
+        }
+
+        @Override public void cancel () {
+            _cancelled = true;
+            drain();
+        }
+
+        /** Returns the next chunk of output, or null if the output is complete. */
+        protected abstract T next () throws IOException;
+
+        /** Releases the resources used to produce output. */
+        protected abstract void release () throws IOException;
+
+        protected void drain () {
+            // if another thread is already delivering, it will notice our changes when it's done
+            if (_wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                try {
+                    deliver();
+                } catch (Throwable t) {
+                    // a subscriber that throws has broken its contract, so we deliver nothing more
+                    // to it, but we must not leave the subscription stuck as if still delivering
+                    finish();
+                    _wip.set(0);
+                    throw t;
+                }
+                missed = _wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        protected void deliver () {
+            while (!_done) {
+                if (_cancelled) {
+                    finish();
+                } else if (_error != null) {
+                    finish();
+                    _sub.onError(_error);
+                } else if (_demand.get() > 0) {
+                    T chunk;
+                    try {
+                        chunk = next();
+                    } catch (Throwable t) {
+                        // deliver errors too, else the subscriber would wait forever
+                        _error = t;
+                        continue;
+                    }
+                    if (chunk == null) {
+                        finish();
+                        _sub.onComplete();
+                    } else {
+                        _demand.decrementAndGet();
+                        _sub.onNext(chunk);
+                    }
+                } else {
+                    break;
+                }
+            }
+        }
+
+        protected void finish () {
+            if (_done) return;
+            _done = true;
+            try {
+                release();
+            } catch (IOException ioe) {
+                // nothing to be done about it, nor anyone to tell
+            }
+        }
+
+        protected final Flow.Subscriber<? super T> _sub;
+        protected final AtomicLong _demand = new AtomicLong();
+        protected final AtomicInteger _wip = new AtomicInteger();
+        protected volatile Throwable _error;
+        protected volatile boolean _cancelled;
+        protected boolean _done; // only accessed by the delivering thread
+    }
+
+    /**
+     * Executes a template (via an {@link Interpreter}) just far enough to satisfy each read,
+     * encoding its output as UTF-8.
+     */
+    protected static final class RenderStream extends InputStream {
+        public RenderStream (Template tmpl, Context ctx) {
+            _writer = new Utf8Writer(_chunk);
+            _interp = new Interpreter(_writer);
+            _interp.push(tmpl, tmpl.executable(), ctx);
+        }
+
+        @Override public int read () throws IOException {
+            // read straight from our buffer, unless more must be rendered into it
+            if (_pos < _chunk.size) return _chunk.bytes[_pos++] & 0xFF;
+            return (read(_one, 0, 1) == -1) ? -1 : (_one[0] & 0xFF);
+        }
+
+        @Override public int read (byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            // drop what has been read before rendering (and draining) more, see RenderReader
+            if (_interp != null && _pos > 0 && _chunk.size - _pos + _writer._pos < len) {
+                _chunk.compact(_pos);
+                _pos = 0;
+            }
+            while (_interp != null && _chunk.size - _pos + _writer._pos < len) {
+                if (!_interp.step()) {
+                    _interp = null;
+                    _writer.finish();
+                }
+            }
+            _writer.drain();
+            int count = Math.min(len, _chunk.size - _pos);
+            if (count == 0) return -1;
+            System.arraycopy(_chunk.bytes, _pos, b, off, count);
+            _pos += count;
+            return count;
+        }
+
+        @Override public int available () {
+            return _chunk.size - _pos + _writer._pos;
+        }
+
+        @Override public void close () {
+            _interp = null;
+            _writer._pos = 0;
+            _chunk.size = _pos = 0;
+        }
+
+        /** The (growable) buffer into which our writer drains its encoded output. */
+        protected static final class Chunk extends OutputStream {
+            public byte[] bytes = new byte[256];
+            public int size;
+
+            Chunk () {}
+
+            @Override public void write (int b) {
+                if (size == bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                bytes[size++] = (byte)b;
+            }
+            @Override public void write (byte[] b, int off, int len) {
+                if (size + len > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(size + len, bytes.length * 2));
+                }
+                System.arraycopy(b, off, bytes, size, len);
+                size += len;
+            }
+            /** Discards the first {@code count} bytes, shifting the remainder to the front. */
+            public void compact (int count) {
+                System.arraycopy(bytes, count, bytes, 0, size - count);
+                size -= count;
+            }
+        }
+
+        protected Interpreter _interp; // null once the template is fully executed
+        protected final Chunk _chunk = new Chunk();
+        protected final Utf8Writer _writer;
+        protected final byte[] _one = new byte[1];
+        protected int _pos;
+    }
+
+    /**
+     * A frame in the stack of contexts against which variables are resolved. Sections enter their
+     * context via {@link #child}, which reuses a single frame for each level of nesting for the
+     * duration of a render rather than allocating a new frame for every element. Anything that
+     * needs to hold on to a context beyond the execution of its section must {@link #snapshot} it.
+     */
+    protected static class Context {
+        /** The data to which this context is bound. This is updated when the frame is rebound, and
+          * is null while it is bound to an element of a numeric primitive array that has not yet
+          * been boxed; {@link #data()} always returns the bound data. */
+        public Object data;
+        public final Context parent;
+        public int index;
+        public boolean onFirst;
+
+        public Context (Object data, Context parent, int index, boolean onFirst, boolean onLast) {
+            this(data, parent, index, onFirst, onLast, false);
+        }
+
+        protected Context (Object data, Context parent, int index, boolean onFirst, boolean onLast,
+                           boolean shared) {
+            this.data = data;
+            this.parent = parent;
+            this.index = index;
+            this.onFirst = onFirst;
+            _onLast = onLast;
+            _shared = shared;
+        }
+
+        /** Returns the data to which this context is bound. */
+        public Object data () {
+            Object array = _array;
+            if (array != null) {
+                // box the array element now that someone needs it as an object
+                data = _helper.get(array, _element);
+                _array = null;
+            }
+            return data;
+        }
+
+        /** Returns whether this context is bound to an element of a numeric primitive array (see
+          * {@link BasicCollector.ArrayHelper#isNumeric}) which has not yet been boxed. */
+        public boolean onNumericElement () {
+            return _array != null && _helper.isNumeric();
+        }
+
+        /** Writes the primitive array element to which this context is bound to {@code out}, as
+          * {@link String#valueOf} would format it. See {@link #onNumericElement}. */
+        public void writeElement (Writer out) throws IOException {
+            _helper.write(_array, _element, out, scratch());
+        }
+
+        /** Returns a buffer that can be used to format numbers for output. */
+        public char[] scratch () {
+            // shared contexts may be used by multiple threads, so can't cache a buffer
+            if (_shared) return new char[SCRATCH_SIZE];
+            char[] scratch = _scratch;
+            if (scratch == null) _scratch = scratch = new char[SCRATCH_SIZE];
+            return scratch;
+        }
+
+        /** Returns whether this context is bound to the last element of its section. If this
+          * context was bound via {@link #child(Object,int,boolean,Iterator)}, this is determined
+          * (by asking the section's iterator whether it has more elements) only when first
+          * requested, so that sections which don't care are not forced to look ahead. */
+        public boolean onLast () {
+            Iterator<?> rest = _rest;
+            if (rest != null) {
+                _onLast = !rest.hasNext();
+                _rest = null;
+            }
+            return _onLast;
+        }
+
+        /** Returns a child of this context bound to {@code data}, which inherits this context's
+          * index information. See {@link #child(Object,int,boolean,boolean)}. */
+        public Context child (Object data) {
+            Context child = child(data, index, onFirst, _onLast);
+            child._rest = _rest;
+            return child;
+        }
+
+        /** Returns a child of this context bound to element {@code element} of {@code array}. If
+          * the array holds primitive numbers, the element is not extracted from the array (and
+          * boxed) until it is needed. See {@link #child(Object,int,boolean,boolean)}. */
+        public Context child (Object array, BasicCollector.ArrayHelper helper, int element,
+                              int index, boolean onFirst, boolean onLast) {
+            // only numbers are worth not boxing, anything else is bound right away
+            if (!helper.isNumeric()) {
+                return child(helper.get(array, element), index, onFirst, onLast);
+            }
+            Context child = child(null, index, onFirst, onLast);
+            child._array = array;
+            child._helper = helper;
+            child._element = element;
+            return child;
+        }
+
+        /** Returns a child of this context bound to the supplied data. The returned frame is
+          * reused by subsequent calls to this method, so it is only valid until then. */
+        public Context child (Object data, int index, boolean onFirst, boolean onLast) {
+            Context child = _child;
+            if (child == null) {
+                child = new Context(data, this, index, onFirst, onLast);
+                // shared contexts may be used by multiple threads, so can't cache a child frame
+                if (!_shared) _child = child;
+            } else {
+                child.data = data;
+                child._array = null;
+                child.index = index;
+                child.onFirst = onFirst;
+                child._onLast = onLast;
+                child._rest = null;
+                child._snapshot = null;
+            }
+            return child;
+        }
+
+        /** Returns a child of this context bound to the supplied data, which is the element most
+          * recently returned by {@code rest}. Whether it is the last element is determined lazily,
+          * see {@link #onLast}. */
+        public Context child (Object data, int index, boolean onFirst, Iterator<?> rest) {
+            Context child = child(data, index, onFirst, false);
+            child._rest = rest;
+            return child;
+        }
+
+        /** Returns an immutable copy of this context and its parents, which can be retained (and
+          * used from any thread) after this context's frame has been reused. Each frame keeps its
+          * copy until it is reused, so only the frames rebound since the last snapshot are copied.
+          */
+        public Context snapshot () {
+            // find the nearest frame that is immutable or has an up to date copy
+            int count = 0;
+            Context top = this;
+            while (top != null && !top._shared && top._snapshot == null) {
+                top = top.parent;
+                count++;
+            }
+            Context snap = (top == null || top._shared) ? top : top._snapshot;
+            // then copy the frames below it, from the outermost in
+            Context[] frames = new Context[count];
+            for (Context ctx = this; count > 0; ctx = ctx.parent) frames[--count] = ctx;
+            for (Context frame : frames) {
+                snap = new Context(frame.data(), snap, frame.index, frame.onFirst, frame.onLast(),
+                                   true);
+                frame._snapshot = snap;
+            }
+            return snap;
+        }
+
+        public Context nest (Object data) {
+            Context nest = new Context(data, this, index, onFirst, _onLast);
+            nest._rest = _rest;
+            return nest;
+        }
+
+        public Context nest (Object data, int index, boolean onFirst, boolean onLast) {
+            return new Context(data, this, index, onFirst, onLast);
+        }
+
+        /** The array (and helper and index) from which {@link #data} is obtained, if it has not
+          * yet been. */
+        protected Object _array;
+        protected BasicCollector.ArrayHelper _helper;
+        protected int _element;
+        protected char[] _scratch;
+
+        protected boolean _onLast;
+        /** The iterator from which {@link #onLast} is determined, if it has not yet been. */
+        protected Iterator<?> _rest;
+        protected final boolean _shared;
+        protected Context _child;
+        /** An immutable copy of this frame (and its parents), made since it was last bound. */
+        protected Context _snapshot;
+    }
+
+    /**
+     * Writes {@code value} to {@code out} in decimal, as {@link String#valueOf(long)} would,
+     * without allocating a string.
+     * @param scratch a buffer of at least {@link #SCRATCH_SIZE} characters.
+     */
+    protected static void writeLong (Writer out, long value, char[] scratch) throws IOException {
+        int pos = SCRATCH_SIZE;
+        // work with negative values, which can represent every long (including MIN_VALUE)
+        long neg = (value < 0) ? value : -value;
+        do {
+            long quot = neg / 10;
+            scratch[--pos] = (char)('0' + (quot * 10 - neg));
+            neg = quot;
+        } while (neg != 0);
+        if (value < 0) scratch[--pos] = '-';
+        out.write(scratch, pos, SCRATCH_SIZE - pos);
+    }
+
+    /** The size of the buffer needed by {@link #writeLong}. */
+    protected static final int SCRATCH_SIZE = 20;
+
+    /**
+     * Resolves the value of a particular variable. Optimized templates create a resolver for each
+     * of their variables and sections up front, so that the decisions made by {@link #getValue} on
+     * every lookup (special variables, standards mode, compound keys) are made only once.
+     */
+    protected static abstract class Resolver {
+        protected Resolver () {}
+
+        /** Returns the value of the variable in {@code ctx}. See {@link Template#getValue}. */
+        public abstract Object get (Template tmpl, Context ctx, int line, boolean missingIsNull);
+    }
+
+    /** Creates a resolver for the variable {@code name} in templates compiled by
+      * {@code compiler}. The resolver behaves exactly like {@link #getValue}. */
+    protected static Resolver resolver (final String name, Mustache.Compiler compiler) {
+        if (name.equals(FIRST_NAME)) return FIRST_RESOLVER;
+        if (name.equals(LAST_NAME)) return LAST_RESOLVER;
+        if (name.equals(INDEX_NAME)) return INDEX_RESOLVER;
+        // `.` and `this` resolve to the context data in both standards and non-standards mode
+        if (isThisName(name)) return THIS_RESOLVER;
+
+        if (compiler.standardsMode) {
+            final CallSite site = new CallSite(name);
+            return new Resolver() {
+                public Object get (Template tmpl, Context ctx, int line, boolean missingIsNull) {
+                    Object value = site.get(tmpl, ctx.data(), line);
+                    return tmpl.checkForMissing(name, line, missingIsNull, value);
+                }
+            };
+        }
+
+        if (name.indexOf(DOT_NAME) == -1) return new ScopedResolver(name, null);
+        Resolver path = new PathResolver(name, compiler);
+        return compiler.wholeCompoundNames ? new ScopedResolver(name, path) : path;
+    }
+
+    /**
+     * Resolves a name in the current context or, failing that, in the nearest enclosing context
+     * that provides it. Names used inside sections are often provided by an outer context (e.g.
+     * {@code {{siteName}}} inside {@code {{#items}}}), so this remembers the depth at which the
+     * name was last found, along with the classes of the context objects down to that depth, and
+     * goes straight to that depth when it next sees contexts of the same classes. This is only
+     * done if the name was not found in the skipped contexts because their <em>class</em> has no
+     * such property (not because, say, a map lacked the key), so it yields the same result as
+     * checking each context in turn.
+     */
+    protected static class ScopedResolver extends Resolver {
+        /**
+         * @param fallback the resolver to use if the name is not found in any context, or null if
+         * a missing name should be reported as such.
+         */
+        public ScopedResolver (String name, Resolver fallback) {
+            _site = new CallSite(name);
+            _fallback = fallback;
+        }
+
+        public Object get (Template tmpl, Context ctx, int line, boolean missingIsNull) {
+            Class<?>[] shape = _shape;
+            if (shape != null) {
+                Context pctx = ctx;
+                int depth = 0;
+                while (pctx != null) {
+                    Object data = pctx.data();
+                    if (data == null || data.getClass() != shape[depth]) break;
+                    if (++depth == shape.length) break;
+                    pctx = pctx.parent;
+                }
+                if (depth == shape.length) {
+                    Object value = _site.get(tmpl, pctx.data(), line);
+                    if (value != NO_FETCHER_FOUND) return value;
+                }
+            }
+
+            int depth = 0;
+            for (Context pctx = ctx; pctx != null; pctx = pctx.parent, depth++) {
+                Object value = _site.get(tmpl, pctx.data(), line);
+                if (value != NO_FETCHER_FOUND) {
+                    if (depth > 0) noteDepth(tmpl, ctx, depth);
+                    return value;
+                }
+            }
+            return (_fallback != null) ? _fallback.get(tmpl, ctx, line, missingIsNull) :
+                tmpl.checkForMissing(_site.name, line, missingIsNull, NO_FETCHER_FOUND);
+        }
+
+        protected void noteDepth (Template tmpl, Context ctx, int depth) {
+            Class<?>[] shape = new Class<?>[depth+1];
+            Context pctx = ctx;
+            for (int ii = 0; ii < depth; ii++, pctx = pctx.parent) {
+                Class<?> cclass = pctx.data().getClass();
+                // only skip contexts that can never provide this name
+                if (tmpl._fcache.get(new Key(cclass, _site.name)) != NOT_FOUND_FETCHER) return;
+                shape[ii] = cclass;
+            }
+            shape[depth] = pctx.data().getClass();
+            _shape = shape;
+        }
+
+        protected final CallSite _site;
+        protected final Resolver _fallback;
+        /** The classes of the context objects from the innermost context down to (and including)
+          * the one in which our name was last found, or null. */
+        protected volatile Class<?>[] _shape;
+    }
+
+    /**
+     * Resolves a compound name like {@code foo.bar.baz}. The name is split into its components
+     * once, up front, and each component after the first gets its own {@link CallSite} (which
+     * parses numeric components once as well). This behaves exactly like {@link
+     * #getCompoundValue}.
+     */
+    protected static class PathResolver extends Resolver {
+        public PathResolver (String name, Mustache.Compiler compiler) {
+            _name = name;
+            _comps = name.split("\\.");
+            // a name made up only of dots has no components; leave getCompoundValue to fail on it
+            _first = (_comps.length == 0) ? null : resolver(_comps[0], compiler);
+            _sites = new CallSite[_comps.length];
+            for (int ii = 1; ii < _comps.length; ii++) _sites[ii] = new CallSite(_comps[ii]);
+        }
+
+        public Object get (Template tmpl, Context ctx, int line, boolean missingIsNull) {
+            // the first component may be located in a parent context, but the sub-components must
+            // only be resolved in the object that represents the preceding component
+            if (_first == null) return tmpl.getCompoundValue(ctx, _name, line, missingIsNull);
+            Object data = _first.get(tmpl, ctx, line, missingIsNull);
+            for (int ii = 1; ii < _sites.length; ii++) {
+                if (data == NO_FETCHER_FOUND) {
+                    if (!missingIsNull) throw new MustacheException.Context(
+                        "Missing context for compound variable '" + _name + "' on line " + line +
+                        ". '" + _comps[ii - 1] + "' was not found.", _name, line);
+                    return null;
+                } else if (data == null) {
+                    return null;
+                }
+                data = _sites[ii].get(tmpl, data, line);
+            }
+            return tmpl.checkForMissing(_name, line, missingIsNull, data);
+        }
+
+        protected final String _name;
+        protected final String[] _comps;
+        protected final Resolver _first;
+        protected final CallSite[] _sites;
+    }
+
+    /**
+     * An inline cache of the fetchers used to resolve a single variable at a single place in a
+     * template. Most call sites only ever see one or two classes of context object, so a short
+     * list checked by class identity avoids allocating a {@link Key} and probing the template's
+     * fetcher cache on every lookup. Once more than {@link #MAX_ENTRIES} classes have been seen,
+     * the call site is megamorphic and all further lookups go straight to {@link
+     * Template#getValueIn}.
+     */
+    protected static final class CallSite {
+        public final String name;
+
+        /** The value of {@link #name} if it is a non-negative integer, -1 otherwise. */
+        public final int index;
+
+        public CallSite (String name) {
+            this.name = name;
+            this.index = parseIndex(name);
+        }
+
+        /** Returns the value of this call site's variable in {@code data}. See {@link
+          * Template#getValueIn}. */
+        public Object get (Template tmpl, Object data, int line) {
+            // null data is reported (as a failure) by getValueIn
+            if (data == null) return tmpl.getValueIn(data, name, line);
+
+            Class<?> cclass = data.getClass();
+            int count = 0;
+            for (Entry entry = _entries; entry != null; entry = entry.next, count++) {
+                if (entry.cclass == cclass) {
+                    try {
+                        return (entry.indexed != null) ? entry.indexed.fetch(data, index) :
+                            entry.fetcher.get(data, name);
+                    } catch (Exception e) {
+                        // let the template recreate the fetcher and report any repeat failure
+                        return tmpl.getValueIn(data, name, line);
+                    }
+                }
+            }
+
+            Object value = tmpl.getValueIn(data, name, line);
+            if (count < MAX_ENTRIES) {
+                // getValueIn caches the fetcher it used if it succeeded, so we can grab it from
+                // there; the entry list is immutable, so racing updates at worst lose an entry
+                Mustache.VariableFetcher fetcher = tmpl._fcache.get(new Key(cclass, name));
+                if (fetcher != null) _entries = new Entry(cclass, fetcher, index, _entries);
+            }
+            return value;
+        }
+
+        protected static final class Entry {
+            public final Class<?> cclass;
+            public final Mustache.VariableFetcher fetcher;
+            /** {@link #fetcher} if it can be called with a pre-parsed index, otherwise null. */
+            public final BasicCollector.IndexFetcher indexed;
+            public final Entry next;
+
+            public Entry (Class<?> cclass, Mustache.VariableFetcher fetcher, int index,
+                          Entry next) {
+                this.cclass = cclass;
+                this.fetcher = fetcher;
+                this.indexed = (index >= 0 && fetcher instanceof BasicCollector.IndexFetcher) ?
+                    (BasicCollector.IndexFetcher)fetcher : null;
+                this.next = next;
+            }
+        }
+
+        protected static int parseIndex (String name) {
+            if (name.isEmpty() || name.length() > 9) return -1; // anything longer may overflow
+            int index = 0;
+            for (int ii = 0, ll = name.length(); ii < ll; ii++) {
+                char c = name.charAt(ii);
+                if (c < '0' || c > '9') return -1;
+                index = index * 10 + (c - '0');
+            }
+            return index;
+        }
+
+        protected volatile Entry _entries;
+
+        /** The maximum number of classes cached by a single call site. */
+        protected static final int MAX_ENTRIES = 4;
+    }
+
+    /**
+     * Executes segments using an explicit stack of pending work rather than recursion: segments
+     * which contain other segments (sections, partials, etc.) push their contents onto the
+     * interpreter instead of executing them directly (see {@link
+     * Segment#execute(Template,Context,Interpreter)}). Thus the depth to which sections and
+     * partials may be nested is limited only by the heap. Execution proceeds one segment at a time
+     * (see {@link #step}), so it may also be suspended and resumed between segments.
+     */
+    protected static class Interpreter {
+        /** The writer to which output is written. */
+        public final Writer out;
+
+        public Interpreter (Writer out) {
+            this.out = out;
+        }
+
+        /** Schedules {@code segs} to be executed (with {@code ctx}) before any other pending
+          * work. */
+        public void push (Template tmpl, Segment[] segs, Context ctx) {
+            if (segs.length > 0) pushFrame(tmpl, segs, ctx);
+        }
+
+        /** Schedules {@code segs} to be executed once for each element of {@code iter} (each
+          * time with a child of {@code ctx} bound to the element) before any other pending
+          * work. */
+        public void pushLoop (Template tmpl, Segment[] segs, Context ctx, Iterator<?> iter) {
+            if (!iter.hasNext()) return;
+            Object elem = iter.next();
+            Frame frame = pushFrame(tmpl, segs, ctx.child(elem, 1, true, iter));
+            frame.outer = ctx;
+            frame.iter = iter;
+            frame.index = 1;
+        }
+
+        /** Schedules {@code segs} to be executed once for each element of {@code list}, like
+          * {@link #pushLoop}, but accesses the elements by index rather than via an iterator. */
+        public void pushList (Template tmpl, Segment[] segs, Context ctx, List<?> list) {
+            int size = list.size();
+            if (size == 0) return;
+            Frame frame = pushFrame(tmpl, segs, ctx.child(list.get(0), 1, true, size == 1));
+            frame.outer = ctx;
+            frame.list = list;
+            frame.index = 1;
+        }
+
+        /** Schedules {@code segs} to be executed once for each element of {@code array}, like
+          * {@link #pushLoop}, but binds the elements without extracting (and boxing) them. See
+          * {@link Context#child(Object,BasicCollector.ArrayHelper,int,int,boolean,boolean)}. */
+        public void pushArray (Template tmpl, Segment[] segs, Context ctx, Object array,
+                               BasicCollector.ArrayHelper helper) {
+            int length = helper.length(array);
+            if (length == 0) return;
+            Frame frame = pushFrame(tmpl, segs, ctx.child(array, helper, 0, 1, true, length == 1));
+            frame.outer = ctx;
+            frame.array = array;
+            frame.helper = helper;
+            frame.index = 1;
+        }
+
+        /** Executes the next pending segment.
+          * @return true if a segment was executed, false if there was no more work to do. */
+        public boolean step () {
+            while (_depth > 0) {
+                Frame top = _stack[_depth-1];
+                if (top.pos < top.segs.length) {
+                    top.segs[top.pos++].execute(top.tmpl, top.ctx, this);
+                    return true;
+                }
+                Iterator<?> iter = top.iter;
+                List<?> list = top.list;
+                if (iter != null && iter.hasNext()) {
+                    Object elem = iter.next();
+                    top.ctx = top.outer.child(elem, ++top.index, false, iter);
+                    top.pos = 0;
+                } else if (list != null && top.index < list.size()) {
+                    int index = top.index++;
+                    top.ctx = top.outer.child(
+                        list.get(index), index+1, false, index+1 == list.size());
+                    top.pos = 0;
+                } else if (top.array != null && top.index < top.helper.length(top.array)) {
+                    int index = top.index++, length = top.helper.length(top.array);
+                    top.ctx = top.outer.child(
+                        top.array, top.helper, index, index+1, false, index+1 == length);
+                    top.pos = 0;
+                } else {
+                    popFrame();
+                }
+            }
+            return false;
+        }
+
+        /** Executes all pending work. */
+        public void run () {
+            while (step()) {} // keep on keepin' on
+        }
+
+        protected Frame pushFrame (Template tmpl, Segment[] segs, Context ctx) {
+            // if the frame on top of the stack has nothing left to do, drop it now rather than
+            // later, so that a partial included at the end of itself doesn't grow the stack
+            while (_depth > 0) {
+                Frame top = _stack[_depth-1];
+                if (top.iter != null || top.list != null || top.array != null ||
+                    top.pos < top.segs.length) break;
+                popFrame();
+            }
+            if (_depth == _stack.length) _stack = Arrays.copyOf(_stack, _depth*2);
+            Frame frame = _stack[_depth];
+            if (frame == null) frame = _stack[_depth] = new Frame();
+            _depth++;
+            frame.tmpl = tmpl;
+            frame.segs = segs;
+            frame.pos = 0;
+            frame.ctx = ctx;
+            return frame;
+        }
+
+        protected void popFrame () {
+            Frame frame = _stack[--_depth];
+            frame.tmpl = null;
+            frame.segs = null;
+            frame.ctx = frame.outer = null;
+            frame.iter = null;
+            frame.list = null;
+            frame.array = null;
+            frame.helper = null;
+        }
+
+        /** A list of segments being executed, possibly repeatedly (for each element of a
+          * section's value). Frames are reused as the stack grows and shrinks. */
+        protected static class Frame {
+            public Template tmpl;
+            public Segment[] segs;
+            public int pos;
+            public Context ctx;
+            public Context outer; // when looping, the context to which each element is bound
+            public Iterator<?> iter;
+            public List<?> list;
+            public Object array;
+            public BasicCollector.ArrayHelper helper;
+            public int index;
+
+            Frame () {}
+        }
+
+        protected Frame[] _stack = new Frame[8];
+        protected int _depth;
+    }
+
+    /** A template is broken into segments. */
+    protected static abstract class Segment {
+        abstract void execute (Template tmpl, Context ctx, Writer out);
+
+        /** Executes this segment via {@code interp}. Segments which contain other segments must
+          * push them onto the interpreter rather than executing them directly. All other segments
+          * simply execute to the interpreter's writer, which is what this default implementation
+          * does. */
+        void execute (Template tmpl, Context ctx, Interpreter interp) {
+            execute(tmpl, ctx, interp.out);
+        }
+        abstract void decompile (Mustache.Delims delims, StringBuilder into);
+        abstract void visit (Mustache.Visitor visitor);
+
+        /**
+         * Recursively indent by the parameter indent.
+         * @param indent should be space characters that are not {@code \n}.
+         * @param first append indent to the first line (regardless if it has a {@code \n} or not).
+         * @param last append indent on the last {@code \n} that has no text after it.
+         * @return a newly created segment or the same segment if nothing changed.
+         */
+        abstract Segment indent (String indent, boolean first, boolean last);
+
+        /**
+         * Whether or not the segment is standalone. The definition of standalone is defined by the
+         * mustache spec. String and variable tags are never standalone. For blocks this is based on
+         * the closing tag. Once {@code trim} is called, standalone tags are determined so that
+         * proper (re)indentation will work without reparsing the template.
+         * @return true if the tag is standalone.
+         */
+        abstract boolean isStandalone ();
+
+        protected static void write (Writer out, CharSequence data) {
+            try {
+                out.append(data);
+            } catch (IOException ioe) {
+                throw new MustacheException(ioe);
+            }
+        }
+
+        protected static void escape (Appendable out, CharSequence data, Mustache.Escaper escape) {
+            try {
+                byte[][] table;
+                if (out instanceof Utf8Writer && (table = Escapers.utf8Table(escape)) != null) {
+                    ((Utf8Writer)out).escape(data, table);
+                } else {
+                    escape.escape(out, data);
+                }
+            } catch (IOException ioe) {
+                throw new MustacheException(ioe);
+            }
+        }
+    }
+
+    /** Used to cache variable fetchers for a given context class, name combination. */
+    protected static class Key {
+        public final Class<?> cclass;
+        public final String name;
+
+        public Key (Class<?> cclass, String name) {
+            this.cclass = cclass;
+            this.name = name;
+        }
+
+        @Override public int hashCode () {
+            return cclass.hashCode() * 31 + name.hashCode();
+        }
+
+        @Override public boolean equals (Object other) {
+            Key okey = (Key)other;
+            return okey.cclass == cclass && okey.name.equals(name);
+        }
+
+        @Override public String toString () {
+            return cclass.getName() + ":" + name;
+        }
+    }
+
+    protected static boolean isThisName (String name) {
+        return DOT_NAME.equals(name) || THIS_NAME.equals(name);
+    }
+
+    protected static final String DOT_NAME = ".";
+    protected static final String THIS_NAME = "this";
+    protected static final String FIRST_NAME = "-first";
+    protected static final String LAST_NAME = "-last";
+    protected static final String INDEX_NAME = "-index";
+
+    protected static final Resolver FIRST_RESOLVER = new Resolver() {
+        public Object get (Template tmpl, Context ctx, int line, boolean missingIsNull) {
+            return ctx.onFirst;
+        }
+    };
+    protected static final Resolver LAST_RESOLVER = new Resolver() {
+        public Object get (Template tmpl, Context ctx, int line, boolean missingIsNull) {
+            return ctx.onLast();
+        }
+    };
+    protected static final Resolver INDEX_RESOLVER = new Resolver() {
+        public Object get (Template tmpl, Context ctx, int line, boolean missingIsNull) {
+            return ctx.index;
+        }
+    };
+    protected static final Resolver THIS_RESOLVER = new Resolver() {
+        public Object get (Template tmpl, Context ctx, int line, boolean missingIsNull) {
+            return ctx.data();
+        }
+    };
 
     /** A fetcher cached for lookups that failed to find a fetcher. */
     protected static Mustache.VariableFetcher NOT_FOUND_FETCHER = new Mustache.VariableFetcher() {
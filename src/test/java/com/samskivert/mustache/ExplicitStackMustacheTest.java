@@ -0,0 +1,89 @@
+//
+// JMustache - A Java implementation of the Mustache templating language
+// http://github.com/samskivert/jmustache/blob/master/LICENSE
+
+package com.samskivert.mustache;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the shared tests against templates executed with an explicit stack, which must behave
+ * identically to templates executed recursively.
+ */
+public class ExplicitStackMustacheTest extends SharedTests
+{
+    @Override protected void test (Mustache.Compiler compiler, String expected, String template,
+                                   Object ctx) {
+        super.test(compiler.explicitStack(true), expected, template, ctx);
+    }
+
+    @Test public void testDeepRecursion () throws Exception {
+        String result = executeDeep("{{name}}{{#child}}{{>node}}{{/child}}", null);
+        assertEquals(DEPTH, result.length());
+        assertEquals("1234567890", result.substring(0, 10));
+    }
+
+    @Test public void testDeepLambdas () throws Exception {
+        // each lambda call snapshots its context, which must not copy (or recurse through) the
+        // whole stack every time
+        Mustache.Lambda wrap = new Mustache.Lambda() {
+            public void execute (Template.Fragment frag, Writer out) throws IOException {
+                out.write("[");
+                frag.execute(out);
+                out.write("]");
+            }
+        };
+        String result = executeDeep("{{#wrap}}{{name}}{{/wrap}}{{#child}}{{>node}}{{/child}}",
+                                    wrap);
+        assertEquals(3*DEPTH, result.length());
+        assertEquals("[1][2][3]", result.substring(0, 9));
+    }
+
+    protected static final int DEPTH = 20000;
+
+    /** Executes {@code node} (as a partial which recurses into each node's child) on a tree of
+      * {@link #DEPTH} nodes, on a thread whose stack would overflow if rendering recursed. */
+    protected static String executeDeep (final String node, Mustache.Lambda wrap)
+        throws Exception {
+        Map<String, Object> root = null;
+        for (int ii = DEPTH; ii > 0; ii--) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("name", ii % 10);
+            map.put("child", root);
+            map.put("wrap", wrap);
+            root = map;
+        }
+        final Object ctx = root;
+        final Template tmpl = Mustache.compiler().explicitStack(true).
+            withLoader(new Mustache.TemplateLoader() {
+                public Reader getTemplate (String name) {
+                    return new StringReader(node);
+                }
+            }).compile("{{>node}}");
+
+        // run on a thread with a small stack, which would overflow if we recursed
+        final String[] result = new String[1];
+        final Throwable[] error = new Throwable[1];
+        Thread thread = new Thread(null, new Runnable() {
+            public void run () {
+                try {
+                    result[0] = tmpl.execute(ctx);
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        }, "small-stack", 128*1024);
+        thread.start();
+        thread.join();
+        if (error[0] != null) throw new AssertionError(error[0]);
+        return result[0];
+    }
+}
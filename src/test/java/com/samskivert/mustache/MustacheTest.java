@@ -4,19 +4,51 @@
 
 package com.samskivert.mustache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.TimeZone;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 
 import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -115,6 +147,526 @@ public class MustacheTest extends SharedTests
         }));
     }
 
+    @Test public void testCollectorDecidesPerValue () {
+        // a collector may decide that some values of a class are collections and others not
+        Template tmpl = Mustache.compiler().withCollector(new DefaultCollector() {
+            @Override public Iterator<?> toIterator (Object value) {
+                if (value instanceof String && ((String)value).indexOf(',') >= 0) {
+                    return Arrays.asList(((String)value).split(",")).iterator();
+                }
+                return super.toIterator(value);
+            }
+        }).compile("{{#v}}[{{.}}]{{/v}}");
+        check("[x]", tmpl.execute(context("v", "x")));
+        check("[a][b]", tmpl.execute(context("v", "a,b")));
+    }
+
+    @Test public void testSectionValueKindChanges () {
+        Template tmpl = Mustache.compiler().compile("{{#foo}}[{{bar}}]{{/foo}}{{^foo}}none{{/foo}}");
+        Object list = Arrays.asList(context("bar", "a"), context("bar", "b"));
+        for (int ii = 0; ii < 3; ii++) check("[a][b]", tmpl.execute(context("foo", list)));
+        check("[c]", tmpl.execute(context("foo", true, "bar", "c")));
+        check("none", tmpl.execute(context("foo", false, "bar", "c")));
+        check("[d]", tmpl.execute(context("foo", context("bar", "d"))));
+        check("none", tmpl.execute(context("foo", Collections.emptyList())));
+        check("<[e]>", tmpl.execute(context("bar", "e", "foo", new Mustache.Lambda() {
+            public void execute (Template.Fragment frag, Writer out) throws IOException {
+                out.write("<" + frag.execute() + ">");
+            }
+        })));
+        check("[a][b]", tmpl.execute(context("foo", list)));
+        check("[f]", tmpl.execute(context("foo", new String[] { "f" }, "bar", "f")));
+    }
+
+    @Test public void testContextData () {
+        // the data field tracks the data to which a (reused) frame is bound
+        Template.Context root = new Template.Context("root", null, 0, false, false);
+        assertEquals("root", root.data);
+        Template.Context child = root.child("a", 1, true, false);
+        assertEquals("a", child.data);
+        assertSame(child, root.child(new String[] { "b" }, BasicCollector.OBJECT_ARRAY_HELPER,
+                                     0, 1, true, true));
+        assertEquals("b", child.data);
+        // numeric elements are only boxed once someone asks for them
+        root.child(new int[] { 3 }, BasicCollector.INT_ARRAY_HELPER, 0, 1, true, true);
+        assertNull(child.data);
+        assertEquals(3, child.data());
+        assertEquals(3, child.data);
+    }
+
+    @Test public void testExecuteToBuilder () {
+        Template tmpl = Mustache.compiler().compile("{{#things}}{{.}},{{/things}}");
+        StringBuilder out = new StringBuilder("pre:");
+        tmpl.execute(context("things", Arrays.asList(1, 2)), out);
+        check("pre:1,2,", out.toString());
+        // the template learns how much space to reserve for its output
+        check(String.join(",", Collections.nCopies(100, "abc")) + ",",
+              tmpl.execute(context("things", Collections.nCopies(100, "abc"))));
+        assertTrue(tmpl._outputSize >= 400);
+    }
+
+    @Test public void testExecuteToStream () {
+        String source = "caf\u00e9 {{#things}}<{{.}}>{{{.}}}{{/things}} \ud83d\ude00 {{n}}\u20ac\n";
+        String big = String.join("", Collections.nCopies(5000, "\u00e9<\ud83d\ude01"));
+        Object ctx = context("things", Arrays.asList("a&b", "\u00fc\ud83d\ude00'", big, "\ud83d"),
+                             "n", 42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // optimized templates escape and encode in one pass, just as unoptimized templates do
+        for (boolean optimize : new boolean[] { false, true }) {
+            Template tmpl = Mustache.compiler().optimize(optimize).compile(source);
+            out.reset();
+            tmpl.execute(ctx, out);
+            // unpaired surrogates are encoded as '?', just as String.getBytes encodes them
+            String expect = new String(tmpl.execute(ctx).getBytes(StandardCharsets.UTF_8),
+                                       StandardCharsets.UTF_8);
+            check(expect, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+        // a template that is all static text is written straight from its pre-encoded bytes
+        out.reset();
+        Mustache.compiler().compile("\u00e9t\u00e9").execute(null, out);
+        assertTrue(Arrays.equals("\u00e9t\u00e9".getBytes(StandardCharsets.UTF_8),
+                                 out.toByteArray()));
+    }
+
+    @Test public void testExecuteDigest () throws NoSuchAlgorithmException {
+        Template tmpl = Mustache.compiler().compile("{{#things}}<{{.}}>\u00e9{{/things}}");
+        Object ctx = context("things", Collections.nCopies(5000, "\ud83d\ude00&"));
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] expect = digest.digest(tmpl.execute(ctx).getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(Arrays.equals(expect, tmpl.execute(ctx, out, digest)));
+        check(tmpl.execute(ctx), new String(out.toByteArray(), StandardCharsets.UTF_8));
+        // the digest can be computed without keeping the output, and is the same each time
+        assertTrue(Arrays.equals(expect, tmpl.execute(ctx, null, digest)));
+    }
+
+    @Test public void testEscapeWithoutSubsequences () throws IOException {
+        final StringBuilder out = new StringBuilder();
+        Writer writer = new Writer() {
+            public void write (char[] cbuf, int off, int len) { out.append(cbuf, off, len); }
+            public void write (String str, int off, int len) { out.append(str, off, off + len); }
+            public Writer append (CharSequence csq, int start, int end) {
+                throw new AssertionError("Unexpected subsequence append");
+            }
+            public void flush () {}
+            public void close () {}
+        };
+        String text = "<!-- \"quoted\" & <b>bold</b> -->";
+        Escapers.HTML.escape(writer, text);
+        check(Escapers.HTML.escape(text), out.toString());
+        out.setLength(0);
+        Mustache.compiler().compile("{{a}} {{b}}").execute(context("a", text, "b", 1), writer);
+        check(Escapers.HTML.escape(text) + " 1", out.toString());
+    }
+
+    @Test public void testExecuteGzip () throws Exception {
+        Template tmpl = Mustache.compiler().compile("{{#things}}<{{.}}>\u00e9{{/things}}");
+        Object ctx = context("things", Collections.nCopies(50000, "\ud83d\ude00&"));
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            tmpl.executeGzip(ctx, out, exec);
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            in.transferTo(bytes);
+            check(tmpl.execute(ctx), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+
+            // failures in rendering stop compression...
+            try {
+                Mustache.compiler().compile("{{#things}}{{.}}{{/things}}{{missing}}").executeGzip(
+                    ctx, new ByteArrayOutputStream(), exec);
+                fail();
+            } catch (MustacheException me) {} // expected
+            // ...and failures in compression (or writing) stop rendering
+            final int[] writes = { 0 };
+            try {
+                tmpl.executeGzip(ctx, new OutputStream() {
+                    public void write (int b) throws IOException { throw new IOException("full"); }
+                    public void write (byte[] b, int off, int len) throws IOException {
+                        if (++writes[0] > 1) throw new IOException("full");
+                    }
+                }, exec);
+                fail();
+            } catch (MustacheException me) {} // expected
+
+            // errors, not just exceptions, stop both rendering and compression
+            try {
+                Mustache.compiler().compile("{{#fail}}{{/fail}}").executeGzip(
+                    context("fail", new Mustache.Lambda() {
+                        public void execute (Template.Fragment frag, Writer out) {
+                            throw new StackOverflowError();
+                        }
+                    }), new ByteArrayOutputStream(), exec);
+                fail();
+            } catch (StackOverflowError e) {} // expected
+            writes[0] = 0;
+            try {
+                tmpl.executeGzip(ctx, new OutputStream() {
+                    public void write (int b) { throw new StackOverflowError(); }
+                    public void write (byte[] b, int off, int len) {
+                        if (++writes[0] > 1) throw new StackOverflowError();
+                    }
+                }, exec);
+                fail();
+            } catch (MustacheException me) {} // expected
+            // the stage has released the executor's one thread
+            assertEquals("free", exec.submit(() -> "free").get(10, TimeUnit.SECONDS));
+
+            // output before a flush point reaches the sink while rendering continues
+            final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            final String[] seen = { "" };
+            Template flushed = Mustache.compiler().flushComment("flush").compile(
+                "<head/>{{! flush }}{{#peek}}{{/peek}}<body/>");
+            flushed.executeGzip(context("peek", new Mustache.Lambda() {
+                public void execute (Template.Fragment frag, Writer out) {
+                    long stop = System.currentTimeMillis() + 10000;
+                    while (seen[0].isEmpty() && System.currentTimeMillis() < stop) {
+                        seen[0] = inflatePartial(sink.toByteArray());
+                    }
+                }
+            }), sink, exec);
+            check("<head/>", seen[0]);
+            in = new GZIPInputStream(new ByteArrayInputStream(sink.toByteArray()));
+            check("<head/><body/>", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        } finally {
+            exec.shutdown();
+        }
+
+        // an executor that won't run the stage fails the render rather than hanging it
+        try {
+            tmpl.executeGzip(ctx, new ByteArrayOutputStream(), exec);
+            fail();
+        } catch (RejectedExecutionException ree) {} // expected
+        Template.Pipeline dropped = new Template.Pipeline() {
+            @Override protected void consume (byte[] bytes, int length) {}
+            @Override protected void complete () {}
+        };
+        dropped.start(new Executor() {
+            public void execute (Runnable task) {} // silently discarded
+        });
+        dropped._startNanos -= TimeUnit.MILLISECONDS.toNanos(Template.Pipeline.START_MILLIS);
+        try {
+            dropped.finish();
+            fail();
+        } catch (IOException ioe) {} // expected
+    }
+
+    /** Inflates as much of the (incomplete, but sync flushed) gzip data as is available. */
+    protected static String inflatePartial (byte[] gzip) {
+        if (gzip.length <= 10) return ""; // just the header
+        Inflater inf = new Inflater(true);
+        inf.setInput(gzip, 10, gzip.length - 10);
+        byte[] buf = new byte[1024];
+        try {
+            return new String(buf, 0, inf.inflate(buf), StandardCharsets.UTF_8);
+        } catch (DataFormatException dfe) {
+            throw new AssertionError(dfe);
+        } finally {
+            inf.end();
+        }
+    }
+
+    @Test public void testExecuteToFile () throws IOException {
+        Path dir = Files.createTempDirectory("jmustache");
+        try {
+            Path file = dir.resolve("out.txt");
+            Files.write(file, "previous".getBytes(StandardCharsets.UTF_8));
+            Template tmpl = Mustache.compiler().compile("{{#things}}<{{.}}>\u00e9{{/things}}");
+            Object ctx = context("things", Collections.nCopies(5000, "\ud83d\ude00&"));
+            tmpl.execute(ctx, file);
+            check(tmpl.execute(ctx), new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            assertEquals(1, dir.toFile().list().length);
+
+            // a failed execution leaves the previous output untouched and no temporary files
+            try {
+                Mustache.compiler().compile("partial {{missing}}").execute(context(), file);
+                fail();
+            } catch (MustacheException me) {} // expected
+            check(tmpl.execute(ctx), new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            assertEquals(1, dir.toFile().list().length);
+
+            // output which spans multiple regions
+            Path multi = dir.resolve("multi.txt");
+            try (FileChannel chan = FileChannel.open(
+                     multi, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE)) {
+                Template.MappedOutputStream out = new Template.MappedOutputStream(chan, 1000);
+                tmpl.execute(ctx, out);
+                out.finish();
+            }
+            check(tmpl.execute(ctx), new String(Files.readAllBytes(multi), StandardCharsets.UTF_8));
+
+            // where a mapped file can't be truncated, its output is copied via its channel
+            Path copy = dir.resolve("copy.txt");
+            try (FileChannel chan = FileChannel.open(
+                     multi, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                chan.write(ByteBuffer.wrap(new byte[10]), chan.size());
+                Template.copyOutput(chan, chan.size() - 10, copy);
+            }
+            check(tmpl.execute(ctx), new String(Files.readAllBytes(copy), StandardCharsets.UTF_8));
+        } finally {
+            for (File file : dir.toFile().listFiles()) file.delete();
+            Files.delete(dir);
+        }
+    }
+
+    @Test public void testExecuteRope () throws IOException {
+        String body = String.join("", Collections.nCopies(20, "<p>body text</p>"));
+        Template tmpl = Mustache.compiler().compile(
+            "{{#layout}}" + body + "{{name}}" + body + "{{/layout}}!");
+        Object ctx = context("name", "<b>", "layout", new Mustache.Lambda() {
+            public void execute (Template.Fragment frag, Writer out) throws IOException {
+                Template.Rope rope = frag.executeRope();
+                out.write("<div>");
+                out.append(rope);
+                out.write("</div>");
+            }
+        });
+        String expect = "<div>" + body + "&lt;b&gt;" + body + "</div>!";
+        check(expect, tmpl.execute(ctx));
+        Template.Rope rope = tmpl.executeRope(ctx);
+        check(expect, rope.toString());
+        // the rope references the fragment's rope, which references the template text
+        assertEquals(3, rope._pieces.length);
+        assertTrue(rope._pieces[1] instanceof Template.Rope);
+        assertEquals(3, ((Template.Rope)rope._pieces[1])._pieces.length);
+
+        assertEquals(expect.length(), rope.length());
+        for (int ii = 0; ii < expect.length(); ii++) {
+            assertEquals(expect.charAt(ii), rope.charAt(ii));
+        }
+        check(expect.substring(3, 400), rope.subSequence(3, 400).toString());
+        StringBuilder out = new StringBuilder();
+        rope.appendTo((Appendable)out);
+        check(expect, out.toString());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Mustache.compiler().escapeHTML(false).compile("{{rope}}").execute(
+            context("rope", rope), bytes);
+        check(expect, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test public void testSafeTextBytes () {
+        Template tmpl = Mustache.compiler().compile("<p>{{a}}</p>");
+        Mustache.SafeText safe = new Mustache.SafeText("<i>\u00e9</i>");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tmpl.execute(context("a", safe), out);
+        check("<p><i>\u00e9</i></p>", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        // once the text has its encoding, byte outputs write that as-is
+        byte[] utf8 = safe.utf8();
+        assertSame(utf8, safe.utf8());
+        out.reset();
+        tmpl.execute(context("a", new Mustache.SafeText("ignored", utf8)), out);
+        check("<p><i>\u00e9</i></p>", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        // safe text is a snapshot of its text, so every output sees the same version of it
+        StringBuilder text = new StringBuilder("<b>\u00e9</b>");
+        Mustache.SafeText snap = new Mustache.SafeText(text);
+        text.setLength(0);
+        out.reset();
+        tmpl.execute(context("a", snap), out);
+        check("<p><b>\u00e9</b></p>", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        check("<p><b>\u00e9</b></p>", tmpl.execute(context("a", snap)));
+    }
+
+    @Test public void testExecuteToChannel () {
+        String big = String.join("", Collections.nCopies(200, "<\u00e9>"));
+        Template tmpl = Mustache.compiler().compile(
+            big + "{{#things}}[{{.}}]" + big + "{{/things}}\ud83d\ude00{{n}}");
+        Object ctx = context("things", Arrays.asList("a&b", big, "\u00fc"), "n", 42);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final int[] writes = { 0 };
+        // a channel that writes at most 100 bytes at a time, like a congested socket might
+        GatheringByteChannel chan = new GatheringByteChannel() {
+            public long write (ByteBuffer[] srcs, int offset, int length) {
+                writes[0]++;
+                long wrote = 0;
+                for (int ii = offset; ii < offset + length && wrote < 100; ii++) {
+                    while (srcs[ii].hasRemaining() && wrote < 100) {
+                        bytes.write(srcs[ii].get());
+                        wrote++;
+                    }
+                }
+                return wrote;
+            }
+            public long write (ByteBuffer[] srcs) { return write(srcs, 0, srcs.length); }
+            public int write (ByteBuffer src) { return (int)write(new ByteBuffer[] { src }); }
+            public boolean isOpen () { return true; }
+            public void close () {}
+        };
+        for (int ii = 0; ii < 2; ii++) {
+            bytes.reset();
+            tmpl.execute(ctx, chan);
+            check(tmpl.execute(ctx), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        }
+        // a template of little static text goes out in one write
+        writes[0] = 0;
+        bytes.reset();
+        Mustache.compiler().compile("{{a}} and {{b}}").execute(context("a", 1, "b", 2), chan);
+        check("1 and 2", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        assertTrue(writes[0] == 1);
+    }
+
+    @Test public void testOpenReader () throws IOException {
+        final int[] made = { 0 };
+        Iterable<String> items = new Iterable<String>() {
+            public Iterator<String> iterator () {
+                made[0] = 0;
+                return new Iterator<String>() {
+                    public boolean hasNext () { return made[0] < 100000; }
+                    public String next () { return "item\u00e9" + (made[0]++); }
+                };
+            }
+        };
+        Object ctx = context("items", items);
+        Template tmpl = Mustache.compiler().withLoader(new Mustache.TemplateLoader() {
+            public Reader getTemplate (String name) {
+                return new StringReader("\ud83d\ude00{{#items}}{{/items}}");
+            }
+        }).compile("<ul>{{#items}}<li>{{.}}</li>{{/items}}</ul>{{>foot}}");
+        String expect = tmpl.execute(ctx);
+
+        // the template is only executed as far as is needed to satisfy each read
+        Reader reader = tmpl.openReader(ctx);
+        char[] cbuf = new char[64];
+        assertTrue(reader.read(cbuf) == 64);
+        check(expect.substring(0, 64), new String(cbuf));
+        assertTrue(made[0] < 10);
+        StringBuilder out = new StringBuilder(new String(cbuf));
+        for (int read; (read = reader.read(cbuf)) != -1; ) out.append(cbuf, 0, read);
+        check(expect, out.toString());
+        assertTrue(reader.read(cbuf) == -1);
+
+        InputStream in = tmpl.openStream(ctx);
+        byte[] bbuf = new byte[100];
+        assertTrue(in.read(bbuf) == 100);
+        assertTrue(made[0] < 10);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(bbuf);
+        for (int read; (read = in.read(bbuf, 0, 1 + bytes.size() % 100)) != -1; ) {
+            bytes.write(bbuf, 0, read);
+        }
+        check(expect, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        // what has been read is discarded, so reading in chunks needs only chunk sized buffers
+        Template.RenderReader chunkReader = (Template.RenderReader)tmpl.openReader(ctx);
+        cbuf = new char[8192];
+        out.setLength(0);
+        for (int read; (read = chunkReader.read(cbuf)) != -1; ) {
+            out.append(cbuf, 0, read);
+            assertTrue(chunkReader._chunk.capacity() < 4 * cbuf.length);
+        }
+        check(expect, out.toString());
+        Template.RenderStream chunkStream = (Template.RenderStream)tmpl.openStream(ctx);
+        bbuf = new byte[8192];
+        bytes.reset();
+        for (int read; (read = chunkStream.read(bbuf)) != -1; ) {
+            bytes.write(bbuf, 0, read);
+            assertTrue(chunkStream._chunk.bytes.length < 4 * bbuf.length);
+        }
+        check(expect, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        // as does reading a char or byte at a time
+        Template.RenderReader charReader = (Template.RenderReader)tmpl.openReader(ctx);
+        out.setLength(0);
+        for (int c; (c = charReader.read()) != -1; ) out.append((char)c);
+        assertTrue(charReader._chunk.capacity() < 4 * cbuf.length);
+        check(expect, out.toString());
+        Template.RenderStream byteStream = (Template.RenderStream)tmpl.openStream(ctx);
+        bytes.reset();
+        for (int b; (b = byteStream.read()) != -1; ) bytes.write(b);
+        assertTrue(byteStream._chunk.bytes.length < 4 * bbuf.length);
+        check(expect, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    protected static class Collector<T> implements Flow.Subscriber<T> {
+        public Flow.Subscription sub;
+        public final List<T> chunks = new ArrayList<>();
+        public Throwable error;
+        public boolean complete;
+
+        public void onSubscribe (Flow.Subscription sub) { this.sub = sub; }
+        public void onNext (T chunk) { chunks.add(chunk); }
+        public void onError (Throwable error) { this.error = error; }
+        public void onComplete () { complete = true; }
+    }
+
+    @Test public void testPublish () {
+        Template tmpl = Mustache.compiler().compile("{{#items}}<{{.}}>{{/items}}");
+        Object ctx = context("items", Collections.nCopies(10000, "\u00e9t\u00e9"));
+        String expect = tmpl.execute(ctx);
+
+        Collector<CharSequence> chars = new Collector<>();
+        tmpl.publish(ctx).subscribe(chars);
+        assertTrue(chars.chunks.isEmpty());
+        // nothing is rendered until it's asked for
+        chars.sub.request(1);
+        assertEquals(1, chars.chunks.size());
+        assertFalse(chars.complete);
+        chars.sub.request(Long.MAX_VALUE);
+        assertTrue(chars.complete);
+        StringBuilder out = new StringBuilder();
+        for (CharSequence chunk : chars.chunks) out.append(chunk);
+        check(expect, out.toString());
+
+        Collector<ByteBuffer> bytes = new Collector<>();
+        tmpl.publishBytes(ctx).subscribe(bytes);
+        for (int ii = 0; !bytes.complete; ii++) {
+            bytes.sub.request(1);
+            assertTrue(bytes.chunks.size() >= ii);
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (ByteBuffer chunk : bytes.chunks) {
+            bout.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        }
+        check(expect, new String(bout.toByteArray(), StandardCharsets.UTF_8));
+
+        // errors are delivered to the subscriber rather than thrown
+        Collector<CharSequence> failed = new Collector<>();
+        Mustache.compiler().compile("{{missing}}").publish(context()).subscribe(failed);
+        failed.sub.request(1);
+        assertTrue(failed.error instanceof MustacheException);
+        assertFalse(failed.complete);
+        // as are errors that aren't exceptions, after which nothing more is delivered
+        Collector<CharSequence> errored = new Collector<>();
+        Mustache.compiler().compile("a{{#boom}}{{/boom}}").publish(context(
+            "boom", new Mustache.Lambda() {
+                public void execute (Template.Fragment frag, Writer out) {
+                    throw new StackOverflowError();
+                }
+            })).subscribe(errored);
+        errored.sub.request(1);
+        assertTrue(errored.error instanceof StackOverflowError);
+        errored.sub.cancel();
+        errored.sub.request(1);
+        assertTrue(errored.chunks.isEmpty());
+        assertFalse(errored.complete);
+
+        // a cancelled subscription delivers nothing more
+        Collector<CharSequence> cancelled = new Collector<>();
+        tmpl.publish(ctx).subscribe(cancelled);
+        cancelled.sub.request(1);
+        cancelled.sub.cancel();
+        cancelled.sub.request(10);
+        assertEquals(1, cancelled.chunks.size());
+    }
+
+    @Test public void testFlushComment () {
+        String tmpl = "<head/>\n{{! flush }}\n{{#items}}{{.}}{{!flush}}{{/items}}{{! other }}\n";
+        Object ctx = context("items", Arrays.asList("a", "b"));
+        for (boolean optimize : new boolean[] { false, true }) {
+            final StringBuilder out = new StringBuilder();
+            Writer writer = new Writer() {
+                public void write (char[] cbuf, int off, int len) { out.append(cbuf, off, len); }
+                public void flush () { out.append('|'); }
+                public void close () {}
+            };
+            Mustache.Compiler comp = Mustache.compiler().optimize(optimize).flushComment("flush");
+            comp.compile(tmpl).execute(ctx, writer);
+            check("<head/>\n|a|b|\n", out.toString());
+            // flush comments are otherwise just comments
+            Template plain = Mustache.compiler().optimize(optimize).compile(tmpl);
+            check("<head/>\nab\n", plain.execute(ctx));
+            check("<head/>\nab\n", comp.compile(tmpl).execute(ctx));
+        }
+    }
+
     @Test public void testSectionWithNonFalseyZero () {
         test(Mustache.compiler(), "test", "{{#foo}}test{{/foo}}", new Object() {
             Long foo = 0L;
@@ -212,10 +764,14 @@ public class MustacheTest extends SharedTests
     }
 
     @Test public void testCompoundVariableAsPlain () {
-        // if a compound variable is found without decomposition, we use that first
-        test("wholekey", "{{foo.bar}}", context(
-                 "foo.bar", "wholekey",
-                 "foo", new Object() { String bar = "hello"; }));
+        // if requested, and a compound variable is found without decomposition, we use that first
+        Mustache.Compiler comp = Mustache.compiler().wholeCompoundNames(true);
+        Object ctx = context("foo.bar", "wholekey", "foo", new Object() { String bar = "hello"; });
+        test(comp, "wholekey", "{{foo.bar}}", ctx);
+        test(comp.optimize(true), "wholekey", "{{foo.bar}}", ctx);
+        // otherwise we go straight to decomposition
+        test("hello", "{{foo.bar}}", ctx);
+        test(Mustache.compiler().optimize(true), "hello", "{{foo.bar}}", ctx);
     }
 
     @Test public void testShadowedContextWithNull () {
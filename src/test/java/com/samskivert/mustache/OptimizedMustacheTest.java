@@ -0,0 +1,85 @@
+//
+// JMustache - A Java implementation of the Mustache templating language
+// http://github.com/samskivert/jmustache/blob/master/LICENSE
+
+package com.samskivert.mustache;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Runs the shared tests against optimized templates, which must behave identically to their
+ * unoptimized counterparts.
+ */
+public class OptimizedMustacheTest extends SharedTests
+{
+    @Override protected void test (Mustache.Compiler compiler, String expected, String template,
+                                   Object ctx) {
+        super.test(compiler.optimize(true), expected, template, ctx);
+    }
+
+    @Test public void testTextCoalesced () {
+        Template tmpl = Mustache.compiler().optimize(true).compile(
+            "a{{! one }}b{{=<% %>=}}c<%={{ }}=%>\n{{#foo}}\nd{{! two }}e\n{{/foo}}\n");
+        assertEquals(2, tmpl._exec.length);
+        assertEquals(1, ((Mustache.SectionSegment)tmpl._exec[1])._segs.length);
+        check("abc\nde\nde\n", tmpl.execute(context("foo", Arrays.asList(1, 2))));
+    }
+
+    @Test public void testOptimizeAfter () throws InterruptedException {
+        Template tmpl = Mustache.compiler().optimizeAfter(3).compile("{{#foo}}{{.}}{{/foo}}");
+        Object ctx = context("foo", Arrays.asList(1, 2));
+        for (int ii = 0; ii < 3; ii++) {
+            assertSame(tmpl._segs, tmpl._exec);
+            check("12", tmpl.execute(ctx));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (tmpl._exec == tmpl._segs && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotSame(tmpl._segs, tmpl._exec);
+        check("12", tmpl.execute(ctx));
+    }
+
+    public static class Item {
+        public String name () { return "item"; }
+    }
+    public static class Sale extends Item {
+        @Override public String name () { return "sale"; }
+    }
+    public static class Clearance extends Item {
+        @Override public String name () { return "clearance"; }
+    }
+
+    @Test public void testMixedClassesAtCallSite () {
+        Template tmpl = Mustache.compiler().optimize(true).compile("{{#items}}{{name}} {{/items}}");
+        Object ctx = context("items", Arrays.asList(
+            new Item(), new Sale(), new Clearance(), new Sale(), new Item()));
+        check("item sale clearance sale item ", tmpl.execute(ctx));
+        check("item sale clearance sale item ", tmpl.execute(ctx));
+    }
+
+    public static class Named extends Item {
+        public String site = "named";
+    }
+
+    @Test public void testEnclosingContextLookups () {
+        Template tmpl = Mustache.compiler().optimize(true).compile(
+            "{{#items}}{{site}} {{/items}}");
+        Object ctx = context("site", "outer", "items", Arrays.asList(
+            new Item(), new Item(), new Named(), new Item(), context("site", "map"),
+            context("other", "map"), new Item()));
+        check("outer outer named outer map outer outer ", tmpl.execute(ctx));
+        check("outer outer named outer map outer outer ", tmpl.execute(ctx));
+    }
+
+    @Test public void testNeverOptimize () {
+        Template tmpl = Mustache.compiler().optimizeAfter(0).compile("{{foo}}");
+        for (int ii = 0; ii < 2000; ii++) check("bar", tmpl.execute(context("foo", "bar")));
+        assertSame(tmpl._segs, tmpl._exec);
+    }
+}
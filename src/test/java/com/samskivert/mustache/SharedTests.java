@@ -6,6 +6,7 @@ package com.samskivert.mustache;
 
 import static java.util.Map.entry;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -13,10 +14,12 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +49,24 @@ public abstract class SharedTests
         test("1234", "{{#foo}}{{this}}{{/foo}}", context("foo", new int[] { 1, 2, 3, 4 }));
     }
 
+    @Test public void testPrimitiveArrayTypes () {
+        test("-9223372036854775808,0,9223372036854775807,",
+             "{{#foo}}{{.}},{{/foo}}", context("foo", new long[] {
+                     Long.MIN_VALUE, 0, Long.MAX_VALUE }));
+        test("-128,127,|-32768,32767,", "{{#b}}{{.}},{{/b}}|{{#s}}{{.}},{{/s}}", context(
+                 "b", new byte[] { Byte.MIN_VALUE, Byte.MAX_VALUE },
+                 "s", new short[] { Short.MIN_VALUE, Short.MAX_VALUE }));
+        test("1.5,-0.0,NaN,|2.5,Infinity,", "{{#d}}{{.}},{{/d}}|{{#f}}{{.}},{{/f}}", context(
+                 "d", new double[] { 1.5, -0.0, Double.NaN },
+                 "f", new float[] { 2.5f, Float.POSITIVE_INFINITY }));
+        test("&lt;a,true", "{{#c}}{{.}}{{/c}},{{#z}}{{.}}{{/z}}", context(
+                 "c", new char[] { '<', 'a' }, "z", new boolean[] { true }));
+        // elements are also usable as values in nested sections and with special variables
+        test("1:5 2:6[6] ", "{{#foo}}{{-index}}:{{.}}{{#.}}{{^-first}}[{{.}}]{{/-first}}{{/.}} {{/foo}}",
+             context("foo", new int[] { 5, 6 }));
+        test("42|7", "{{a}}|{{b}}", context("a", 42, "b", 7L));
+    }
+
     @Test public void testPrimitiveArrayIndexVariable () {
         test("1", "{{foo.0}}", context("foo", new int[] { 1, 2, 3, 4 }));
     }
@@ -419,6 +440,74 @@ public abstract class SharedTests
         check("&#x60;&#x3D;", Mustache.compiler().compile("{{a}}").execute(context("a", "`=")));
     }
 
+    @Test public void testEscaperScan () throws IOException {
+        String clean = "plain text, with \u00e9 and \u0160 and \ud83d\ude00 and @[\\]^_{|}~";
+        assertSame(clean, Escapers.HTML.escape(clean));
+        check("&lt;" + clean + "&amp;" + clean + "&#x60;",
+              Escapers.HTML.escape("<" + clean + "&" + clean + "`"));
+        check("&quot;&#39;&lt;&gt;&#x3D;&#x60;&amp;", Escapers.HTML.escape("\"'<>=`&"));
+        // a non-string sequence takes the general path, but must escape identically
+        StringBuilder out = new StringBuilder();
+        Escapers.HTML.escape(out, new StringBuilder("<" + clean + "&" + clean + "`"));
+        check("&lt;" + clean + "&amp;" + clean + "&#x60;", out.toString());
+
+        // escapes must be found at every position of a long string...
+        StringBuilder spread = new StringBuilder();
+        for (int ii = 0; ii < 4000; ii++) spread.append((ii % 3 == 0) ? '\u00e9' : 'a');
+        for (int pos : new int[] { 3999, 2000, 1023, 1000, 192, 191, 128, 64, 63, 0 }) {
+            spread.insert(pos, '&');
+        }
+        check(spread.toString().replace("&", "&amp;"), Escapers.HTML.escape(spread.toString()));
+        // ...and characters whose low bits match those of an escaped character (\u0126 and &,
+        // \u00bc and <) must not be escaped
+        String aliases = String.join("", Collections.nCopies(200, "\u0126\u00bc" + clean));
+        assertSame(aliases, Escapers.HTML.escape(aliases));
+        String marked = String.join("<", Collections.nCopies(100, aliases.substring(0, 37)));
+        check(marked.replace("<", "&lt;"), Escapers.HTML.escape(marked));
+    }
+
+    @Test public void testSafeText () {
+        Mustache.SafeText safe = new Mustache.SafeText("<b>caf\u00e9 & co</b>");
+        test("<b>caf\u00e9 & co</b> &lt;b&gt;", "{{safe}} {{unsafe}}",
+             context("safe", safe, "unsafe", "<b>"));
+        // safe text is not formatted either
+        test(Mustache.compiler().withFormatter(new Mustache.Formatter() {
+            public String format (Object value) { return "formatted"; }
+        }), "<b>caf\u00e9 & co</b> formatted", "{{#list}}{{.}} {{/list}}{{{other}}}",
+             context("list", Arrays.asList(safe), "other", 1));
+    }
+
+    @Test public void testNumberFormatting () {
+        List<Integer> list = new ArrayList<>();
+        for (int ii = 0; ii < 200; ii++) list.add(ii);
+        test("1:0 200:199 ", "{{#list}}{{#-first}}{{-index}}:{{.}} {{/-first}}" +
+             "{{#-last}}{{{-index}}}:{{{.}}} {{/-last}}{{/list}}", context("list", list));
+        test("1.5 -Infinity 2.5 -9223372036854775808 -5",
+             "{{d}} {{i}} {{f}} {{l}} {{s}}", context("d", 1.5, "i", Double.NEGATIVE_INFINITY,
+                                                   "f", 2.5f, "l", Long.MIN_VALUE, "s", -5));
+        // numbers are escaped by escapers that might change them
+        Mustache.Escaper ones = Escapers.simple(new String[][] { { "1", "one" } });
+        test(Mustache.compiler().withEscaper(ones), "one0 one.5 one2 one",
+             "{{a}} {{b}} {{#list}}{{-index}}{{/list}} {{c}}",
+             context("a", 10, "b", 1.5, "list", Arrays.asList(1, 2), "c", 1L));
+    }
+
+    @Test public void testFormatTo () {
+        // a formatter that formats only into the sink is used for unescaped values
+        Mustache.Formatter sink = new Mustache.Formatter() {
+            public String format (Object value) { return "<" + value + ">"; }
+            @Override public void formatTo (Object value, Appendable out) throws IOException {
+                out.append('<').append(String.valueOf(value)).append('>');
+            }
+            @Override public void formatTo (int value, Appendable out) throws IOException {
+                out.append('<').append(String.valueOf(value)).append('>');
+            }
+        };
+        test(Mustache.compiler().withFormatter(sink), "&lt;1&gt; <1> &lt;2&gt; <2> <x> ",
+             "{{#list}}{{-index}} {{{-index}}} {{/list}}{{{x}}} ",
+             context("list", Arrays.asList("a", "b"), "x", "x"));
+    }
+
     @Test public void testUserDefinedEscaping() {
         Mustache.Escaper escaper = Escapers.simple(new String[][] {
             { "[", ":BEGIN:" },
@@ -428,6 +517,28 @@ public abstract class SharedTests
               compile("{{a}}").execute(context("a", "[b]")));
     }
 
+    @Test public void testMultiCharacterEscaping () {
+        // replacements are not themselves escaped, even if they contain escaped text
+        Mustache.Escaper latex = Escapers.simple(new String[][] {
+            { "\\", "\\textbackslash{}" },
+            { "{", "\\{" },
+            { "}", "\\}" },
+            { "\u00e9", "\\'{e}" },
+        });
+        check("\\textbackslash{}\\{caf\\'{e}\\}", Mustache.compiler().withEscaper(latex).
+              compile("{{a}}").execute(context("a", "\\{caf\u00e9}")));
+        // the longest matching sequence is replaced
+        Mustache.Escaper words = Escapers.simple(new String[][] {
+            { "ab", "[AB]" },
+            { "a", "[A]" },
+            { "abc", "[ABC]" },
+            { "\ud83d\ude00", ":)" },
+        });
+        check("[ABC][AB][AB]x[A]:)\ud83d", words.escape("abcababxa\ud83d\ude00\ud83d"));
+        check("none here", words.escape("none here"));
+        check("", words.escape(""));
+    }
+
     @Test public void testPartialDelimiterMatch () {
         check("{bob}", Mustache.compiler().compile("{bob}").execute(EMPTY));
         check("bar", Mustache.compiler().compile("{{bob}bob}}").execute(context("bob}bob", "bar")));
@@ -599,6 +710,22 @@ public abstract class SharedTests
              context("things", Arrays.asList("1", "2", "3")));
     }
 
+    @Test public void testLastLazily () {
+        // a counting iterator, so we can see that sections only look ahead when they must
+        class Counting implements Iterator<String> {
+            public int hasNexts;
+            private final Iterator<String> _iter = Arrays.asList("1", "2", "3").iterator();
+            public boolean hasNext () { hasNexts++; return _iter.hasNext(); }
+            public String next () { return _iter.next(); }
+        }
+        Counting iter = new Counting();
+        test("1,2,3", "{{#things}}{{this}}{{#this}}{{^-last}},{{/-last}}{{/this}}{{/things}}",
+             context("things", iter));
+        iter = new Counting();
+        test("123", "{{#things}}{{this}}{{/things}}", context("things", iter));
+        assertEquals(4, iter.hasNexts);
+    }
+
     @Test public void testIndex () {
         test("123", "{{#things}}{{-index}}{{/things}}",
              context("things", Arrays.asList("foo", "bar", "baz")));
@@ -786,6 +913,21 @@ public abstract class SharedTests
                  }));
     }
 
+    @Test public void testLambdaRetainsFragment () {
+        final List<Template.Fragment> frags = new ArrayList<>();
+        test("", "{{#things}}{{#keep}}{{name}}:{{-index}}{{#sub}}/{{.}}{{/sub}}{{/keep}}{{/things}}",
+             context("keep", new Mustache.Lambda() {
+                 public void execute (Template.Fragment frag, Writer out) {
+                     frags.add(frag);
+                 }
+             }, "things", Arrays.asList(context("name", "a", "sub", Arrays.asList(1, 2)),
+                                        context("name", "b", "sub", Arrays.asList(3)))));
+        // the fragments must still see the contexts in which they were created
+        StringBuilder out = new StringBuilder();
+        for (Template.Fragment frag : frags) out.append(frag.execute()).append(' ');
+        check("a:1/1/2 b:2/3 ", out.toString());
+    }
+
     @Test public void testLambdaDecompile () {
         test("Foo {{a}}, Bar {{a}}", "{{#lam}}Foo {{a}}{{/lam}}, {{#lam}}Bar {{a}}{{/lam}}",
              context("lam", new Mustache.Lambda() {
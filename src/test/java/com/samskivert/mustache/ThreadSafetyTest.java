@@ -128,4 +128,25 @@ public class ThreadSafetyTest {
         assertTrue(q.isEmpty());
         assertEquals(1, loadCount.get());
     }
+
+    @Test
+    public void testOptimizeWhileExecuting () throws Exception {
+        Template template = Mustache.compiler().optimizeAfter(50).
+            compile("{{#items}}{{name}}{{^-last}}, {{/-last}}{{/items}}{{! done }}");
+        List<Map<String, Object>> items = new LinkedList<>();
+        for (String name : new String[] { "a", "b", "c" }) items.add(Map.of("name", name));
+        Map<String, Object> ctx = Map.of("items", items);
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        ConcurrentLinkedDeque<String> failures = new ConcurrentLinkedDeque<>();
+        for (int i = 0; i < 5000; i++) {
+            executor.execute(() -> {
+                String value = template.execute(ctx);
+                if (!"a, b, c".equals(value)) failures.add(value);
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10_000, TimeUnit.MILLISECONDS);
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
 }